@@ -0,0 +1,242 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+import framework.ds.FMComposition;
+import framework.packet.PacketPart.Packet_Enum;
+import jm.music.data.Note;
+import jm.music.data.Part;
+import jm.music.data.Phrase;
+
+/**
+ * Encoder for the binary encoding described in BinaryWireFormat. Composition
+ * encoding transcodes a JSON Composition: the encoder is the CompositionSink
+ * behind a CompositionDecoder in place of a CompositionBuilder, records what
+ * is read, and writes it out with segment names interned into one table. Part encoding
+ * writes the parts generated by a Packet, like PartWriter does for JSON.
+ */
+public class BinaryCompositionEncoder implements CompositionSink {
+
+	/** Values of the metrics entries, in input order */
+	private List<int[]> metrics = new ArrayList<>();
+
+	/** Intervals of the metrics entries */
+	private List<int[]> metricsIntervals = new ArrayList<>();
+
+	/** Index of every segment name */
+	private Map<String, Integer> names = new LinkedHashMap<>();
+
+	/** Name index of every pattern segment */
+	private List<Integer> segmentNames = new ArrayList<>();
+
+	/** Chord progression of every pattern segment */
+	private List<EventList> segments = new ArrayList<>();
+
+	/** Name index of every pattern entry */
+	private List<Integer> pattern = new ArrayList<>();
+
+	/** Previously generated parts */
+	private List<EventList> parts = new ArrayList<>();
+
+	/** Root of the packet tree, holding a TreeNodeEvents in every node */
+	private DefaultMutableTreeNode treeRoot;
+
+	/**
+	 * Transcodes a JSON Composition into its binary encoding
+	 * @param json: reader positioned at the start of the composition object
+	 * @param out: destination of the binary composition
+	 * @throws IOException if the composition cannot be read or encoded
+	 */
+	public static void transcode(Reader json, OutputStream out) throws IOException {
+		BinaryCompositionEncoder encoder = new BinaryCompositionEncoder();
+		new CompositionDecoder(encoder).decode(json);
+		encoder.writeTo(out);
+	}
+
+	/**
+	 * Writes the notes of every given part as one binary part message
+	 * @param out: destination
+	 * @param result: parts generated by the Packet, may be null
+	 * @param name: name of the part
+	 * @throws IOException if a pitch cannot be packed or the stream fails
+	 */
+	public static void writePart(OutputStream out, Collection<Part> result, String name) throws IOException {
+		EventList events = new EventList();
+		events.setName(name);
+		if(result != null) {
+			for(Part p : result) {
+				Vector<?> phrases = p.getPhraseList();
+				for(int i = 0; i < phrases.size(); i++) {
+					Vector<?> notes = ((Phrase)phrases.get(i)).getNoteList();
+					for(int j = 0; j < notes.size(); j++) {
+						Note n = (Note)notes.get(j);
+						events.addPitch(n.getPitch());
+						events.endEvent(FMComposition.getFMRhythmValue(n.getRhythmValue()));
+					}
+				}
+			}
+		}
+		OutputStream buffered = new BufferedOutputStream(out);
+		buffered.write(BinaryWireFormat.PART_MAGIC);
+		writeEvents(buffered, events);
+		buffered.flush();
+	}
+
+	@Override
+	public void addMetrics(int num, int denom, int tempo, int tonic, int[] intervals, int position) {
+		metrics.add(new int[] {num, denom, tempo, tonic, position});
+		metricsIntervals.add(intervals);
+	}
+
+	@Override
+	public void addSegment(String name, EventList chordProgression) {
+		segmentNames.add(intern(name));
+		segments.add(chordProgression);
+	}
+
+	@Override
+	public void addPatternEntry(String name) {
+		pattern.add(intern(name));
+	}
+
+	@Override
+	public void addPart(EventList events) {
+		parts.add(events);
+	}
+
+	@Override
+	public DefaultMutableTreeNode createTreeNode(Packet_Enum mode, EventList part, boolean active) {
+		return new DefaultMutableTreeNode(new TreeNodeEvents(mode, part, active));
+	}
+
+	@Override
+	public void setPacketTreeRoot(DefaultMutableTreeNode root) {
+		treeRoot = root;
+	}
+
+	/**
+	 * Writes everything recorded as one binary composition
+	 * @param out: destination
+	 * @throws IOException if a pitch cannot be packed or the stream fails
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		OutputStream buffered = new BufferedOutputStream(out);
+		buffered.write(BinaryWireFormat.COMPOSITION_MAGIC);
+
+		BinaryWireFormat.writeVarint(buffered, metrics.size());
+		for(int i = 0; i < metrics.size(); i++) {
+			int[] m = metrics.get(i);
+			BinaryWireFormat.writeVarint(buffered, m[0]);
+			BinaryWireFormat.writeVarint(buffered, m[1]);
+			BinaryWireFormat.writeVarint(buffered, m[2]);
+			BinaryWireFormat.writeSignedVarint(buffered, m[3]);
+			int[] intervals = metricsIntervals.get(i);
+			BinaryWireFormat.writeVarint(buffered, intervals.length);
+			for(int interval : intervals) {
+				BinaryWireFormat.writeVarint(buffered, interval);
+			}
+			BinaryWireFormat.writeSignedVarint(buffered, m[4]);
+		}
+
+		BinaryWireFormat.writeVarint(buffered, names.size());
+		for(String name : names.keySet()) {
+			BinaryWireFormat.writeString(buffered, name);
+		}
+
+		BinaryWireFormat.writeVarint(buffered, segments.size());
+		for(int i = 0; i < segments.size(); i++) {
+			BinaryWireFormat.writeVarint(buffered, segmentNames.get(i));
+			writeEvents(buffered, segments.get(i));
+		}
+
+		BinaryWireFormat.writeVarint(buffered, pattern.size());
+		for(int index : pattern) {
+			BinaryWireFormat.writeVarint(buffered, index);
+		}
+
+		BinaryWireFormat.writeVarint(buffered, parts.size());
+		for(EventList part : parts) {
+			writeEvents(buffered, part);
+		}
+
+		if(treeRoot == null) {
+			buffered.write(0);
+		} else {
+			buffered.write(1);
+			writeTree(buffered, treeRoot);
+		}
+		buffered.flush();
+	}
+
+	/**
+	 * Returns the index of a segment name in the name table, adding it if needed
+	 */
+	private int intern(String name) {
+		Integer index = names.get(name);
+		if(index == null) {
+			index = names.size();
+			names.put(name, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Writes a packet tree node and its children
+	 */
+	private static void writeTree(OutputStream out, DefaultMutableTreeNode node) throws IOException {
+		TreeNodeEvents events = (TreeNodeEvents)node.getUserObject();
+		int flags = events.active ? BinaryWireFormat.FLAG_ACTIVE : 0;
+		if(events.part != null) {
+			flags |= BinaryWireFormat.FLAG_HAS_PART;
+		}
+		out.write(flags);
+		out.write(events.mode.ordinal());
+		if(events.part != null) {
+			writeEvents(out, events.part);
+		}
+		BinaryWireFormat.writeVarint(out, node.getChildCount());
+		for(int i = 0; i < node.getChildCount(); i++) {
+			writeTree(out, (DefaultMutableTreeNode)node.getChildAt(i));
+		}
+	}
+
+	/**
+	 * Writes a part's name and events
+	 */
+	private static void writeEvents(OutputStream out, EventList events) throws IOException {
+		BinaryWireFormat.writeString(out, events.getName());
+		BinaryWireFormat.writeVarint(out, events.size());
+		for(int i = 0; i < events.size(); i++) {
+			BinaryWireFormat.writeVarint(out, events.getDuration(i));
+			int pitchCount = events.getPitchCount(i);
+			BinaryWireFormat.writeVarint(out, pitchCount);
+			for(int j = 0; j < pitchCount; j++) {
+				BinaryWireFormat.writePitch(out, events.getPitch(i, j));
+			}
+		}
+	}
+
+	/**
+	 * Values recorded for one packet tree node
+	 */
+	private static class TreeNodeEvents {
+		public final Packet_Enum mode;
+		public final EventList part;
+		public final boolean active;
+
+		public TreeNodeEvents(Packet_Enum mode, EventList part, boolean active) {
+			this.mode = mode;
+			this.part = part;
+			this.active = active;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * InputStream over a composition file mapped into memory. The Shell can
+ * write a large composition to a file and pass its path instead of piping
+ * it, so the Packet reads the bytes straight from the page cache instead of
+ * copying them through a pipe and a read buffer.
+ */
+public class MappedInput extends InputStream {
+
+	/** Mapped contents of the file */
+	private final ByteBuffer buffer;
+
+	/** Position of the last mark */
+	private int markedPosition;
+
+	private MappedInput(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Maps the given file read-only. The mapping stays valid after the
+	 * channel is closed and is released when the stream is garbage collected.
+	 * @param path: composition file, JSON or binary
+	 * @return stream over the whole file
+	 * @throws IOException if the file cannot be opened or is too large to map
+	 */
+	public static MappedInput open(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("Composition file " + path + " is too large to map");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return new MappedInput(buffer);
+		}
+	}
+
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if(len == 0) return 0;
+		if(!buffer.hasRemaining()) return -1;
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public void mark(int readlimit) {
+		markedPosition = buffer.position();
+	}
+
+	@Override
+	public void reset() {
+		buffer.position(markedPosition);
+	}
+}
@@ -34,6 +34,8 @@ public class MelodicLineExtractor extends ArrayList<LocatedNote> {
     private void extractNotesFromPart(Part part, boolean smooth) {
         for(Phrase phrase : part.getPhraseArray()) {
             Note[] notes = phrase.getNoteArray();
+            //running start time: Phrase.getNoteStartTime walks the phrase from its start on every call
+            double startTime = phrase.getStartTime();
             for(int noteIdx = 0; noteIdx < notes.length; noteIdx++) {
             	int pitch = notes[noteIdx].getPitch();
             	if(smooth) {
@@ -50,8 +52,8 @@ public class MelodicLineExtractor extends ArrayList<LocatedNote> {
             	}
                 add(new LocatedNote(pitch,
                                     notes[noteIdx].getRhythmValue(),
-                                    //FIXME: Jmusic's docs are bad.  This may require fixes.
-                                    phrase.getNoteStartTime(noteIdx)));
+                                    startTime));
+                startTime += notes[noteIdx].getRhythmValue();
             }
         }
     }
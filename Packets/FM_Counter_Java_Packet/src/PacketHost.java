@@ -0,0 +1,139 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Properties;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+import framework.ds.FMComposition;
+import framework.packet.FMPacket;
+import jm.music.data.Part;
+
+/**
+ * Long-lived mode of FMPacketWrapper, started with the --host argument. The
+ * packet is loaded once and then executed for every request on the input
+ * stream, so class loading and JIT warm-up are paid for only once.
+ *
+ * Each request is a header line followed by a UTF-8 JSON Composition:
+ * <pre>
+ * &lt;mode&gt; &lt;length in bytes&gt;\n
+ * &lt;composition&gt;
+ * </pre>
+ * and is answered with a header line followed by the body:
+ * <pre>
+ * ok &lt;length in bytes&gt;\n
+ * &lt;JSON Part&gt;
+ * </pre>
+ * A composition in the binary encoding of BinaryWireFormat is answered with a
+ * binary part message instead of a JSON Part.
+ * If the packet fails, the status is "error" and the body is the stack trace.
+ * The host exits at the end of the input stream or on the mode "quit".
+ */
+public class PacketHost {
+
+	/** Mode which ends the host */
+	public static final String QUIT = "quit";
+
+	/** Status of a response carrying a Part */
+	public static final String OK = "ok";
+
+	/** Status of a response carrying a stack trace */
+	public static final String ERROR = "error";
+
+	/** Packet shared by every request */
+	private final FMPacket packet;
+
+	/** Name given to the JSON Parts written */
+	private final String partName;
+
+	/** Contents of the packet's packetdata */
+	private final Properties packetProperties;
+
+	/**
+	 * Constructs a host for the given packet
+	 * @param packet: instance executed for every request
+	 * @param packetProperties: contents of the packet's packetdata
+	 */
+	public PacketHost(FMPacket packet, Properties packetProperties) {
+		this.packet = packet;
+		this.partName = FMPacketWrapper.getPartName(packetProperties);
+		this.packetProperties = packetProperties;
+	}
+
+	/**
+	 * Serves requests until the input ends or a quit request is read
+	 * @param requests: framed requests
+	 * @param responses: destination of framed responses
+	 * @throws IOException if a stream fails or a header is malformed
+	 */
+	public void run(InputStream requests, OutputStream responses) throws IOException {
+		PacketInput input = new PacketInput(requests);
+		OutputStream out = new BufferedOutputStream(responses);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		while(true) {
+			String packetMode = input.readToken();
+			if(packetMode.isEmpty() || packetMode.equals(QUIT)) {
+				break;
+			}
+			long length;
+			try {
+				length = Long.parseLong(input.readToken());
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed request header for mode " + packetMode, e);
+			}
+
+			PhaseProfile profile = PhaseProfile.ENABLED ? new PhaseProfile() : null;
+			PacketInput.Frame frame = input.openFrame(length);
+			body.reset();
+			String status = OK;
+			try {
+				boolean binary = frame.isBinary();
+				FMComposition composition;
+				DefaultMutableTreeNode activeElement;
+				if(binary) {
+					BinaryCompositionDecoder decoder = new BinaryCompositionDecoder(FMPacketWrapper.newBuilder(packetProperties));
+					composition = decoder.decode(frame);
+					activeElement = decoder.getActiveElement();
+				} else {
+					CompositionDecoder decoder = FMPacketWrapper.newDecoder(packetProperties);
+					composition = decoder.decode(frame.openReader());
+					activeElement = decoder.getActiveElement();
+				}
+				frame.skipRemaining();
+				if(PhaseProfile.ENABLED) profile.endPhase("decode");
+
+				Collection<Part> result = FMPacketWrapper.execute(packet, packetMode, composition, activeElement);
+				if(PhaseProfile.ENABLED) profile.endPhase("execute");
+
+				if(binary) {
+					BinaryCompositionEncoder.writePart(body, result, partName);
+				} else {
+					new PartWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8)).write(result, partName);
+				}
+				if(PhaseProfile.ENABLED) profile.endPhase("serialize");
+			} catch (RuntimeException | IOException e) {
+				frame.skipRemaining();
+				status = ERROR;
+				body.reset();
+				PrintWriter trace = new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+				e.printStackTrace(trace);
+				trace.flush();
+			}
+
+			out.write((status + " " + body.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+			body.writeTo(out);
+			out.flush();
+			if(PhaseProfile.ENABLED) {
+				profile.endPhase("write");
+				profile.emit(packet.getClass().getName(), packetMode);
+			}
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,167 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Wall time and allocation of each phase of one packet invocation, written
+ * as one JSON line. Enabled by setting the system property fusemuse.profile
+ * or the environment variable FUSEMUSE_PROFILE to "stderr" or to the path
+ * of a file the lines are appended to:
+ * <pre>
+ * {"packet":"SimpleSupport","mode":"supporting","phases":[{"phase":"read","nanos":81234,"allocatedBytes":16440},...],
+ *  "totalNanos":...,"totalAllocatedBytes":...}
+ * </pre>
+ * Callers check ENABLED before touching a profile, so a disabled profile
+ * costs nothing: the check is a static final constant. Allocation is
+ * measured per thread through com.sun.management.ThreadMXBean, and is -1
+ * where the JVM does not support it.
+ */
+public class PhaseProfile {
+
+	/** Destination of the profile lines, or null if profiling is disabled */
+	private static final String DESTINATION = destination();
+
+	/** Whether profiling is enabled */
+	public static final boolean ENABLED = DESTINATION != null;
+
+	/** Allocation counter of the JVM, or null if it has none */
+	private static final com.sun.management.ThreadMXBean ALLOCATION = ENABLED ? allocationBean() : null;
+
+	/** Thread whose allocation is measured */
+	private final long threadId;
+
+	/** Names of the finished phases */
+	private final List<String> phases = new ArrayList<>();
+
+	/** Wall time of the finished phases */
+	private final List<Long> nanos = new ArrayList<>();
+
+	/** Bytes allocated during the finished phases */
+	private final List<Long> allocated = new ArrayList<>();
+
+	/** Start of the current phase */
+	private long phaseStart;
+
+	/** Bytes allocated by the thread at the start of the current phase */
+	private long allocationStart;
+
+	/**
+	 * Starts profiling an invocation on the current thread; the first phase
+	 * starts now
+	 */
+	public PhaseProfile() {
+		threadId = Thread.currentThread().getId();
+		allocationStart = allocatedBytes();
+		phaseStart = System.nanoTime();
+	}
+
+	/**
+	 * Ends the current phase and starts the next one
+	 * @param phase: name of the phase which has just ended
+	 */
+	public void endPhase(String phase) {
+		long now = System.nanoTime();
+		long bytes = allocatedBytes();
+		phases.add(phase);
+		nanos.add(now - phaseStart);
+		allocated.add(bytes < 0 ? -1 : bytes - allocationStart);
+		allocationStart = allocatedBytes();
+		phaseStart = System.nanoTime();
+	}
+
+	/**
+	 * Writes the finished phases as one JSON line. A destination which cannot
+	 * be written is reported on stderr without failing the invocation.
+	 * @param packetName: class name of the packet
+	 * @param packetMode: mode the packet was executed in
+	 */
+	public void emit(String packetName, String packetMode) {
+		try {
+			StringWriter line = new StringWriter();
+			JsonWriter json = new JsonWriter(line);
+			json.beginObject();
+			json.name("packet").value(packetName);
+			json.name("mode").value(packetMode);
+			json.name("phases").beginArray();
+			long totalNanos = 0;
+			long totalAllocated = 0;
+			for(int i = 0; i < phases.size(); i++) {
+				json.beginObject();
+				json.name("phase").value(phases.get(i));
+				json.name("nanos").value(nanos.get(i));
+				json.name("allocatedBytes").value(allocated.get(i));
+				json.endObject();
+				totalNanos += nanos.get(i);
+				totalAllocated = totalAllocated < 0 || allocated.get(i) < 0 ? -1 : totalAllocated + allocated.get(i);
+			}
+			json.endArray();
+			json.name("totalNanos").value(totalNanos);
+			json.name("totalAllocatedBytes").value(totalAllocated);
+			json.endObject();
+			json.flush();
+			line.write('\n');
+			write(line.toString());
+		} catch (IOException e) {
+			System.err.println("Could not write profile to " + DESTINATION + ": " + e);
+		}
+	}
+
+	/**
+	 * Appends a line to the destination
+	 */
+	private static synchronized void write(String line) throws IOException {
+		if(DESTINATION.equals("stderr")) {
+			System.err.print(line);
+			System.err.flush();
+			return;
+		}
+		try(Writer out = new OutputStreamWriter(new FileOutputStream(DESTINATION, true), StandardCharsets.UTF_8)) {
+			out.write(line);
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the profiled thread, or -1
+	 */
+	private long allocatedBytes() {
+		return ALLOCATION == null ? -1 : ALLOCATION.getThreadAllocatedBytes(threadId);
+	}
+
+	/**
+	 * Reads the destination from the system property, then the environment
+	 */
+	private static String destination() {
+		String value = System.getProperty("fusemuse.profile");
+		if(value == null || value.trim().isEmpty()) {
+			value = System.getenv("FUSEMUSE_PROFILE");
+		}
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+
+	/**
+	 * Returns the JVM's allocation counter, enabling it if needed
+	 */
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+		com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean)bean;
+		if(!allocation.isThreadAllocatedMemorySupported()) {
+			return null;
+		}
+		if(!allocation.isThreadAllocatedMemoryEnabled()) {
+			allocation.setThreadAllocatedMemoryEnabled(true);
+		}
+		return allocation;
+	}
+}
@@ -0,0 +1,60 @@
+package framework.ds;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only int array held outside the Java heap, in direct ByteBuffer chunks of a fixed
+ * size. Growing it allocates a new chunk rather than copying the old ones, so the heap only
+ * holds one small buffer object per chunk however many values are stored. The memory is
+ * released when the array is garbage collected.
+ */
+final class DirectIntArray {
+
+	// number of ints in a chunk, as a power of two
+	private static final int CHUNK_SHIFT = 13;
+
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	// chunks in order, each holding CHUNK_SIZE ints
+	private final List<IntBuffer> chunks = new ArrayList<>();
+
+	// number of ints stored
+	private int size;
+
+	/**
+	 * Returns the number of ints stored
+	 * @return size
+	 */
+	int size() { return size; }
+
+	/**
+	 * Appends a value
+	 * @param value
+	 */
+	void add(int value) {
+		int chunk = size >>> CHUNK_SHIFT;
+		if(chunk == chunks.size()) {
+			chunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer());
+		}
+		chunks.get(chunk).put(size & CHUNK_MASK, value);
+		size++;
+	}
+
+	/**
+	 * Returns the value at the given index
+	 * @param index
+	 * @return value
+	 */
+	int get(int index) {
+		if(index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + " of an array of size " + size);
+		}
+		return chunks.get(index >>> CHUNK_SHIFT).get(index & CHUNK_MASK);
+	}
+}
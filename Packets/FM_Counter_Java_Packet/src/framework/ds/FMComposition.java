@@ -1,7 +1,6 @@
 package framework.ds;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -9,8 +8,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import jm.music.data.Part;
 import jm.music.data.Score;
 
 /**
@@ -28,6 +30,24 @@ public class FMComposition implements Iterable<FMMeasure>{
 	// score which stores parts generated by Packets
 	private Score score;
 	
+	// parts not yet converted to jMusic objects, added to the score when it is first requested
+	private List<Supplier<Part>> pendingParts;
+	
+	// parts added as FMParts, in order
+	private List<FMPart> parts;
+	
+	// tempo, key and time signature changes of the composition
+	private MetricsTimeline metrics;
+	
+	// start positions of the pattern's segments, or null if the pattern, the dictionary or a segment's measures have changed since they were computed
+	private PositionIndex positionIndex;
+	
+	// rhythm of the composition, or null if it has not been built or a segment has changed since
+	private RhythmMap rhythm;
+	
+	// position index the rhythm was built from
+	private PositionIndex rhythmIndex;
+	
 	/**
 	 * Constructs an FMComposition object
 	 */
@@ -35,13 +55,92 @@ public class FMComposition implements Iterable<FMMeasure>{
 		segmentDictionary = new HashMap<>();
 		pattern = new ArrayList<>();
 		score = new Score();
+		pendingParts = new ArrayList<>();
+		parts = new ArrayList<>();
+		metrics = MetricsTimeline.EMPTY;
+	}
+	
+	/**
+	 * Constructs a composition without segments, pattern, score or parts of its own, for
+	 * FrozenFMComposition, which overrides every method that would read them.
+	 * @param snapshot: distinguishes this constructor from the public one
+	 */
+	FMComposition(boolean snapshot) {
 	}
 	
 	/**
 	 * Returns the score of the composition, containing all parts
 	 * @return score
 	 */
-	public Score getScore() { return score; }
+	public Score getScore() {
+		if(!pendingParts.isEmpty()) {
+			for(Supplier<Part> part : pendingParts) {
+				score.addPart(part.get());
+			}
+			pendingParts.clear();
+		}
+		return score;
+	}
+	
+	/**
+	 * Adds a part to the score without building it yet. The part is built and
+	 * added, in the order given, the first time the score is requested, so a
+	 * Packet which never reads the score never pays for its parts.
+	 * @param part: supplies the part when the score is first requested
+	 */
+	public void addPendingPart(Supplier<Part> part) {
+		pendingParts.add(part);
+	}
+	
+	/**
+	 * Adds a part to the composition. The part is readable through getParts straight away;
+	 * its jMusic Part is built and added to the score the first time the score is requested.
+	 * @param part
+	 */
+	public void addPart(FMPart part) {
+		parts.add(part);
+		addPendingPart(part::toJMusicPart);
+	}
+	
+	/**
+	 * Returns the parts added with addPart, in the order they were added. Parts added to the
+	 * score in any other way are not included.
+	 * @return read-only list of parts
+	 */
+	public List<FMPart> getParts() {
+		return Collections.unmodifiableList(parts);
+	}
+	
+	/**
+	 * Returns the tempo, key and time signature changes of the composition
+	 * @return timeline, empty if none has been set
+	 */
+	public MetricsTimeline getMetricsTimeline() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets the tempo, key and time signature changes of the composition. The segments are
+	 * not changed; the timeline records the metrics the composition was built with.
+	 * @param metrics
+	 */
+	public void setMetricsTimeline(MetricsTimeline metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Returns a read-only snapshot of the composition, backed by arrays, which answers
+	 * the same queries without name lookups. Packets are handed a snapshot, since they
+	 * only read the composition the Driver Module built.
+	 *
+	 * The snapshot shares this composition's segments and measures rather than copying
+	 * them, and makes them read-only: measures or notes can no longer be added to them
+	 * through either composition.
+	 * @return snapshot sharing this composition's score and segments
+	 */
+	public FMComposition freeze() {
+		return new FrozenFMComposition(this);
+	}
 	
 	/**
 	 * Adds a composition segment to the pattern. For this to function properly, the corresponding
@@ -52,6 +151,7 @@ public class FMComposition implements Iterable<FMMeasure>{
 	public void addCompositionSegment(String name) {
 		if(segmentDictionary.containsKey(name)) {
 			pattern.add(name);
+			positionIndex = null;
 		} else {
 			throw new IllegalArgumentException("Segment name " + name + " not registered (be sure to call registerCompositionSegment before adding segments!)");
 		}
@@ -67,19 +167,48 @@ public class FMComposition implements Iterable<FMMeasure>{
 		for(String name : names) {
 			if(segmentDictionary.containsKey(name)) {
 				pattern.add(name);
+				positionIndex = null;
 			} else {
 				throw new IllegalArgumentException("Segment name " + name + " not registered (be sure to call registerCompositionSegment before adding segments!)");
 			}
 		}
 	}
 	
+	/**
+	 * Creates an empty composition segment stored the way this composition stores its segments.
+	 * The segment still has to be registered with registerCompositionSegment.
+	 * @param ks: the key signature of the segment
+	 * @param tempo: tempo in beats per minute
+	 * @return segment
+	 */
+	public FMCompositionSegment createCompositionSegment(KeySignature ks, int tempo) {
+		return new FMCompositionSegment(ks, tempo);
+	}
+	
 	/**
 	 * Registers the given composition segment to be referenced by the given name
 	 * @param name of segment
 	 * @param segment
 	 */
 	public void registerCompositionSegment(String name, FMCompositionSegment segment) {
-		segmentDictionary.put(name, segment);
+		FMCompositionSegment replaced = segmentDictionary.put(name, segment);
+		segment.addComposition(this);
+		if(replaced != null && replaced != segment && !segmentDictionary.containsValue(replaced)) {
+			replaced.removeComposition(this);
+		}
+		positionIndex = null;
+	}
+	
+	/**
+	 * Called by a registered segment when it changes, so that what was computed from it
+	 * is computed again when next requested.
+	 * @param durationChanged: whether a measure was added, rather than only a note
+	 */
+	void segmentChanged(boolean durationChanged) {
+		rhythm = null;
+		if(durationChanged) {
+			positionIndex = null;
+		}
 	}
 
 	/**
@@ -107,36 +236,68 @@ public class FMComposition implements Iterable<FMMeasure>{
 	 * @return rhythm
 	 */
 	public SortedMap<Integer, Integer> getRhythm() {
-		List<FMCompositionSegment> segments = getCompositionSegments();
-		SortedMap<Integer, Integer> res = new TreeMap<>();
-		int currentSegmentStartPosition = 0;
-		for(FMCompositionSegment fmcs: segments) {
-			SortedMap<Integer, Integer> segmentRhythm = fmcs.getRhythm();
-			for(Integer startInSegment : segmentRhythm.keySet()) {
-				res.put(startInSegment + currentSegmentStartPosition,
-						segmentRhythm.get(startInSegment));
-			}
-			currentSegmentStartPosition += fmcs.getDuration();
+		return getRhythmMap().toSortedMap();
+	}
+	
+	/**
+	 * Returns all notes starting points and durations within the composition, without boxing.
+	 * The map is composed from the segments' cached maps the first time it is requested, and
+	 * again only once the pattern or one of its segments has changed. It is not cached while
+	 * a segment holds MutableFMNotes.
+	 * @return rhythm map
+	 */
+	public RhythmMap getRhythmMap() {
+		PositionIndex index = getPositionIndex();
+		RhythmMap res = rhythm;
+		if(res != null && index == rhythmIndex) {
+			return res;
+		}
+		int size = 0;
+		boolean cacheable = true;
+		for(FMCompositionSegment fmcs : index.segments) {
+			size += fmcs.getRhythmMap().size();
+			cacheable &= !fmcs.hasMutableNotes();
+		}
+		RhythmMap.Builder builder = new RhythmMap.Builder(size);
+		for(int i = 0; i < index.segments.length; i++) {
+			builder.putAll(index.segments[i].getRhythmMap(), index.starts[i]);
+		}
+		res = builder.build();
+		if(cacheable) {
+			rhythm = res;
+			rhythmIndex = index;
 		}
 		return res;
 	}
 	
+	/**
+	 * Returns a sequential stream of the composition's notes in playing order, read from the
+	 * measures as the stream is consumed rather than collected first.
+	 * @return notes with their positions in the composition
+	 */
+	public Stream<FMEvent> events() {
+		return StreamSupport.stream(new CompositionSpliterator(this), false);
+	}
+	
+	/**
+	 * Returns a parallel stream of the composition's notes, split on segment and measure
+	 * boundaries, for analyses over long compositions.
+	 * @return notes with their positions in the composition
+	 */
+	public Stream<FMEvent> parallelEvents() {
+		return StreamSupport.stream(new CompositionSpliterator(this), true);
+	}
+	
 	/**
 	 * Returns all pitches at the given position (in FMNote rhythm value units) in the composition.
 	 * @param position
 	 * @return pitches
 	 */
-	public Collection<Integer> getPitchesAtPosition(int position) {
-		List<FMCompositionSegment> segments = getCompositionSegments();
-		int currentSegmentStartPosition = 0;
-		for(FMCompositionSegment fmcs: segments) {
-			if(position >= currentSegmentStartPosition &&
-					position < currentSegmentStartPosition + fmcs.getDuration()) {
-				return fmcs.getPitchesAtPosition(position - currentSegmentStartPosition);
-			}
-			currentSegmentStartPosition += fmcs.getDuration();
-		}
-		return Collections.emptyList();
+	public PitchSet getPitchesAtPosition(int position) {
+		PositionIndex index = getPositionIndex();
+		int i = index.segmentAt(position);
+		if(i < 0) return PitchSet.EMPTY;
+		return index.segments[i].getPitchesAtPosition(position - index.starts[i]);
 	}
 	
 	/**
@@ -145,16 +306,10 @@ public class FMComposition implements Iterable<FMMeasure>{
 	 * @return duration
 	 */
 	public int getRemainingMeasureDurationAtPosition(int position) {
-		List<FMCompositionSegment> segments = getCompositionSegments();
-		int currentSegmentStartPosition = 0;
-		for(FMCompositionSegment fmcs: segments) {
-			if (position >= currentSegmentStartPosition &&
-					position < currentSegmentStartPosition + fmcs.getDuration()) {
-				return fmcs.getRemainingMeasureDurationAtPosition(position - currentSegmentStartPosition);
-			}
-			currentSegmentStartPosition += fmcs.getDuration();
-		}
-		return -1;
+		PositionIndex index = getPositionIndex();
+		int i = index.segmentAt(position);
+		if(i < 0) return -1;
+		return index.segments[i].getRemainingMeasureDurationAtPosition(position - index.starts[i]);
 	}
 	
 
@@ -165,16 +320,69 @@ public class FMComposition implements Iterable<FMMeasure>{
 	 * @return Composition segment, or null if none exists
 	 */
 	public FMCompositionSegment getCompositionSegmentAtPosition(int position) {
-		List<FMCompositionSegment> segments = getCompositionSegments();
-		int currentSegmentStartPosition = 0;
-		for(FMCompositionSegment fmcs: segments) {
-			if(position >= currentSegmentStartPosition &&
-					position < currentSegmentStartPosition + fmcs.getDuration()) {
-				return fmcs;
+		PositionIndex index = getPositionIndex();
+		int i = index.segmentAt(position);
+		return i < 0 ? null : index.segments[i];
+	}
+	
+	/**
+	 * Returns the start positions of the pattern's segments, computing them if the
+	 * pattern or the segment dictionary has changed since they were last computed, or
+	 * if a segment has gained measures since.
+	 * @return index
+	 */
+	private PositionIndex getPositionIndex() {
+		PositionIndex index = positionIndex;
+		if(index == null) {
+			index = new PositionIndex(getCompositionSegments());
+			positionIndex = index;
+		}
+		return index;
+	}
+	
+	/**
+	 * Prefix sums of the durations of the pattern's segments, so that the segment
+	 * at a position is found by binary search rather than by walking the pattern.
+	 * Segments without measures have a duration of -1, and are counted as empty.
+	 * The positions depend only on the segments' durations, so the index is dropped
+	 * when a segment tells the composition it has gained a measure.
+	 */
+	private static final class PositionIndex {
+		
+		// segments in pattern order
+		final FMCompositionSegment[] segments;
+		
+		// start of each segment in FMNote rhythm value units, followed by the end of the last one
+		final int[] starts;
+		
+		PositionIndex(List<FMCompositionSegment> pattern) {
+			segments = pattern.toArray(new FMCompositionSegment[pattern.size()]);
+			starts = new int[segments.length + 1];
+			for(int i = 0; i < segments.length; i++) {
+				starts[i + 1] = starts[i] + Math.max(0, segments[i].getDuration());
+			}
+		}
+		
+		/**
+		 * Returns the index of the segment containing the given position, or -1
+		 * if the position is outside the composition
+		 */
+		int segmentAt(int position) {
+			if(position < 0 || position >= starts[segments.length]) return -1;
+			// last segment starting at or before the position; empty segments share
+			// their start with the next one, so this one is never empty
+			int lo = 0;
+			int hi = segments.length - 1;
+			while(lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if(starts[mid] <= position) {
+					lo = mid;
+				} else {
+					hi = mid - 1;
+				}
 			}
-			currentSegmentStartPosition += fmcs.getDuration();
+			return lo;
 		}
-		return null;
 	}
 	
 	/**
@@ -1,5 +1,6 @@
 package framework.ds;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -25,6 +26,12 @@ public abstract class KeySignature {
 	public static final int MAJOR = 0;
 
 	public static final int MINOR = 1;
+	
+	/** Octave, relative to the scale's own, of the first degree in the degree table **/
+	private static final int LOWEST_TABLE_OCTAVE = -4;
+	
+	/** Octaves in the degree table, which covers MIDI pitches for scales in octave 3 **/
+	private static final int TABLE_OCTAVES = 11;
 
 	/** 
 	 * Number of sharps or flats in the key signature.
@@ -46,6 +53,88 @@ public abstract class KeySignature {
 	/** Pitches in the key's scale **/
 	protected int[] scale;
 	
+	/** Scale the lookup tables below were computed from **/
+	private int[] indexedScale;
+	
+	/** 
+	 * Pitch classes of the scale, bit n standing for a
+	 * scale pitch p with p % 12 == n
+	**/
+	private int pitchClassMask;
+	
+	/** 
+	 * Remainders of negative scale pitches, bit n standing
+	 * for a scale pitch p with p % 12 == -n
+	**/
+	private int negativePitchClassMask;
+	
+	/** 
+	 * First scale degree of each pitch class 0 to 11,
+	 * or -1 if the pitch class is not in the scale
+	**/
+	private int[] pitchClassDegrees;
+	
+	/** 
+	 * Pitch of each scale degree from the first degree of
+	 * LOWEST_TABLE_OCTAVE, over TABLE_OCTAVES octaves
+	**/
+	private int[] degreePitches;
+	
+	/**
+	 * Sets the pitches of the key's scale and computes the
+	 * pitch class mask and degree tables used by the
+	 * lookups. Subclasses should set the scale through
+	 * this method; a scale assigned directly is indexed
+	 * when it is first looked up.
+	 * @param newScale: the pitches of the scale, tonic first
+	 */
+	protected void setScale(int[] newScale) {
+		scale = newScale;
+		indexScale();
+	}
+	
+	/**
+	 * Computes the lookup tables from the current scale.
+	 */
+	private void indexScale() {
+		int[] s = scale;
+		int mask = 0;
+		int negativeMask = 0;
+		int[] degrees = new int[12];
+		Arrays.fill(degrees, -1);
+		for (int i = 0; i < s.length; i++) {
+			int pitchClass = s[i] % 12;
+			if (pitchClass >= 0) {
+				mask |= 1 << pitchClass;
+				if (degrees[pitchClass] < 0) {
+					degrees[pitchClass] = i;
+				}
+			}
+			else {
+				negativeMask |= 1 << -pitchClass;
+			}
+		}
+		int[] pitches = new int[TABLE_OCTAVES * s.length];
+		for (int i = 0; i < pitches.length; i++) {
+			pitches[i] = s[i % s.length] + 12 * (i / s.length + LOWEST_TABLE_OCTAVE);
+		}
+		pitchClassMask = mask;
+		negativePitchClassMask = negativeMask;
+		pitchClassDegrees = degrees;
+		degreePitches = pitches;
+		indexedScale = s;
+	}
+	
+	/**
+	 * Computes the lookup tables if the scale has been
+	 * replaced since they were last computed.
+	 */
+	private void checkIndexed() {
+		if (indexedScale != scale) {
+			indexScale();
+		}
+	}
+	
 	/**
 	 * Returns whether the pitch is part of the scale in
 	 * this key.
@@ -55,13 +144,97 @@ public abstract class KeySignature {
 	 * 		   scale.
 	 */
 	public boolean matchesKey(int pitch) {
-		for (int i = 0; i < scale.length; i++) {
-			// offsets of 1 octave are still in-key
-			if (scale[i] % 12 == pitch % 12) {
-				return true;
+		checkIndexed();
+		// offsets of 1 octave are still in-key
+		int pitchClass = pitch % 12;
+		if (pitchClass >= 0) {
+			return (pitchClassMask & (1 << pitchClass)) != 0;
+		}
+		return (negativePitchClassMask & (1 << -pitchClass)) != 0;
+	}
+	
+	/**
+	 * Tests whether each of the given pitches is part of
+	 * the scale in this key, writing the answers into an
+	 * array the caller supplies, so that nothing is
+	 * allocated.
+	 * @param pitches: the pitches to be tested against this
+	 * 				   key's scale.
+	 * @param res: receives, for each pitch, true if it is
+	 * 			   part of this key's scale; at least as long
+	 * 			   as pitches
+	 * @return number of the pitches which are part of this
+	 * 		   key's scale
+	 */
+	public int matchesKey(int[] pitches, boolean[] res) {
+		checkIndexed();
+		int count = 0;
+		for (int i = 0; i < pitches.length; i++) {
+			int pitchClass = pitches[i] % 12;
+			res[i] = pitchClass >= 0 ? (pitchClassMask & (1 << pitchClass)) != 0
+					: (negativePitchClassMask & (1 << -pitchClass)) != 0;
+			if (res[i]) {
+				count++;
 			}
 		}
-		return false;
+		return count;
+	}
+	
+	/**
+	 * Returns whether every pitch in the chord is part of
+	 * the scale in this key, comparing the chord's pitch
+	 * classes against the key's in one step.
+	 * @param chord: the pitches in the chord to be tested
+	 * 				 against this key's scale.
+	 * @return true if the chord fits this key's scale.
+	 */
+	public boolean chordMatchesKey(PitchSet chord) {
+		checkIndexed();
+		return (chord.pitchClassMask() & ~pitchClassMask) == 0;
+	}
+	
+	/**
+	 * Returns the pitch classes of this key's scale as a
+	 * 12-bit mask, bit n standing for pitch class n (C is 0).
+	 * @return pitch class mask
+	 */
+	public int getPitchClassMask() {
+		checkIndexed();
+		return pitchClassMask;
+	}
+	
+	/**
+	 * Returns the scale degree of the pitch in this key,
+	 * with 0 standing for the tonic, in any octave.
+	 * @param pitch: the pitch to look up
+	 * @return scale degree, or -1 if the pitch is negative or not part
+	 * 		   of this key's scale
+	 */
+	public int getScaleDegree(int pitch) {
+		checkIndexed();
+		if (pitch < 0) {
+			return -1;
+		}
+		return pitchClassDegrees[pitch % 12];
+	}
+	
+	/**
+	 * Returns the pitch of the given scale degree, counting
+	 * on past the end of the scale into higher octaves and
+	 * below 0 into lower ones. Degrees of pitches in the
+	 * MIDI range are read from a table computed with the
+	 * scale.
+	 * @param degree: 0 for the tonic
+	 * @return pitch as a JMusic Pitch constant
+	 */
+	public int getPitchOfDegree(int degree) {
+		checkIndexed();
+		int i = degree - LOWEST_TABLE_OCTAVE * scale.length;
+		if (i >= 0 && i < degreePitches.length) {
+			return degreePitches[i];
+		}
+		int octave = Math.floorDiv(degree, scale.length);
+		return scale[degree - octave * scale.length] + 12 * octave;
 	}
 	
 	/**
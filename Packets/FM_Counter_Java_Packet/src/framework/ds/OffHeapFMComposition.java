@@ -0,0 +1,64 @@
+package framework.ds;
+
+import java.util.List;
+
+/**
+ * Composition whose segments hold their notes outside the Java heap, for very long pieces.
+ * Segments it creates are OffHeapFMCompositionSegments, and segments registered with it are
+ * copied off the heap when they are registered, so measures added to the original segment
+ * afterwards are not seen. The heap used by the composition grows with its pattern, not with
+ * the number of notes.
+ *
+ * Results which would be large heap objects, such as the rhythm map, are built on every
+ * request rather than cached.
+ */
+public class OffHeapFMComposition extends FMComposition {
+
+	/**
+	 * Creates an empty OffHeapFMCompositionSegment.
+	 * @param ks: the key signature of the segment
+	 * @param tempo: tempo in beats per minute
+	 * @return segment
+	 */
+	@Override
+	public FMCompositionSegment createCompositionSegment(KeySignature ks, int tempo) {
+		return new OffHeapFMCompositionSegment(ks, tempo);
+	}
+
+	/**
+	 * Registers an off-heap copy of the given composition segment to be referenced by the given name.
+	 * @param name of segment
+	 * @param segment
+	 */
+	@Override
+	public void registerCompositionSegment(String name, FMCompositionSegment segment) {
+		super.registerCompositionSegment(name, OffHeapFMCompositionSegment.copyOf(segment));
+	}
+
+	/**
+	 * Returns this composition. A FrozenFMComposition would rebuild every measure on the heap,
+	 * which is what this composition avoids.
+	 * @return this
+	 */
+	@Override
+	public FMComposition freeze() {
+		return this;
+	}
+
+	/**
+	 * Returns all notes starting points and durations within the composition, built from the
+	 * segments on every call rather than cached on the heap.
+	 * @return rhythm map
+	 */
+	@Override
+	public RhythmMap getRhythmMap() {
+		List<FMCompositionSegment> segments = getCompositionSegments();
+		RhythmMap.Builder builder = new RhythmMap.Builder(segments.size());
+		int segmentStart = 0;
+		for(FMCompositionSegment fmcs : segments) {
+			builder.putAll(fmcs.getRhythmMap(), segmentStart);
+			segmentStart += Math.max(0, fmcs.getDuration());
+		}
+		return builder.build();
+	}
+}
@@ -0,0 +1,247 @@
+package framework.ds;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Composition segment whose notes are held outside the Java heap, for very long pieces.
+ * Every note takes four ints (start position within the segment, duration, pitch and tie)
+ * in a DirectIntArray, and every measure the index of its first note, so the heap used by
+ * a segment does not grow with the number of notes.
+ *
+ * A measure's notes are copied when it is added, and the measure itself is not kept: notes
+ * added to it, or MutableFMNotes changed, afterwards are not seen by the segment. Measures
+ * returned by the segment are rebuilt on the heap from the stored notes on every request,
+ * and changes to them are not written back.
+ */
+public class OffHeapFMCompositionSegment extends FMCompositionSegment {
+
+	// ints stored per note
+	private static final int NOTE_INTS = 4;
+
+	// start position within the segment, duration, pitch and tie (0 or 1) of each note, sorted by start
+	private final DirectIntArray notes = new DirectIntArray();
+
+	// index of the first note of each measure, followed by the number of notes
+	private final DirectIntArray measureFirstNote = new DirectIntArray();
+
+	// number of measures
+	private int numMeasures;
+
+	// length of every measure in FMNote rhythm value units, fixed by the first measure added
+	private int measureLength;
+
+	// longest duration of a note in the segment, which bounds how far back a note sounding at a position can start
+	private int maxDuration;
+
+	/**
+	 * Constructs an empty off-heap composition segment from a KeySignature and a tempo.
+	 * @param ks: the key signature of the segment
+	 * @param temp: tempo in beats per minute
+	 */
+	public OffHeapFMCompositionSegment(KeySignature ks, int temp) {
+		super(ks, temp);
+		measureFirstNote.add(0);
+	}
+
+	/**
+	 * Returns an off-heap copy of the given segment.
+	 * @param segment
+	 * @return copy, or the segment itself if it is already held off the heap
+	 */
+	public static OffHeapFMCompositionSegment copyOf(FMCompositionSegment segment) {
+		if(segment instanceof OffHeapFMCompositionSegment) {
+			return (OffHeapFMCompositionSegment)segment;
+		}
+		OffHeapFMCompositionSegment res = new OffHeapFMCompositionSegment(segment.getKeySignature(), segment.getTempo());
+		for(FMMeasure fmm : segment.getMeasures()) {
+			res.addMeasure(fmm);
+		}
+		return res;
+	}
+
+	/**
+	 * Copies the notes of a measure to the end of the segment.
+	 * @param newMeasure
+	 * @return whether the measure is added
+	 */
+	@Override
+	public boolean addMeasure(FMMeasure newMeasure) {
+		checkWritable();
+		matchTimeSignature(newMeasure);
+		if(numMeasures == 0) {
+			measureLength = newMeasure.getMeasureLength();
+		}
+		int measureStart = numMeasures * measureLength;
+		NoteBuffer measureNotes = newMeasure.getNoteBuffer();
+		for(int i = 0; i < measureNotes.size(); i++) {
+			notes.add(measureStart + measureNotes.getStart(i));
+			notes.add(measureNotes.getDuration(i));
+			notes.add(measureNotes.getPitch(i));
+			notes.add(measureNotes.getTiedToNext(i) ? 1 : 0);
+			maxDuration = Math.max(maxDuration, measureNotes.getDuration(i));
+		}
+		numMeasures++;
+		measureFirstNote.add(noteCount());
+		changed(true);
+		return true;
+	}
+
+	@Override
+	public int getDuration() {
+		if(numMeasures == 0) return -1;
+		return measureLength * numMeasures;
+	}
+
+	@Override
+	public FMMeasure getMeasureAtPosition(int position) {
+		if(numMeasures == 0 || position < 0) return null;
+		int whichMeasure = position / measureLength;
+		if(whichMeasure >= numMeasures) return null;
+		return measure(whichMeasure);
+	}
+
+	@Override
+	public int getMeasureStartPosition(int measureIndex) {
+		return measureIndex * measureLength;
+	}
+
+	/**
+	 * Returns a read-only list of the measures, each rebuilt from the stored notes as it is read.
+	 * @return measureList
+	 */
+	@Override
+	public List<FMMeasure> getMeasures() {
+		return new AbstractList<FMMeasure>() {
+			@Override
+			public FMMeasure get(int index) {
+				if(index < 0 || index >= numMeasures) {
+					throw new IndexOutOfBoundsException("Measure " + index + " of " + numMeasures);
+				}
+				return measure(index);
+			}
+
+			@Override
+			public int size() { return numMeasures; }
+		};
+	}
+
+	@Override
+	public int getNumMeasures() {
+		return numMeasures;
+	}
+
+	@Override
+	int getMeasureNoteCount(int measureIndex) {
+		return measureFirstNote.get(measureIndex + 1) - measureFirstNote.get(measureIndex);
+	}
+
+	/**
+	 * Returns the notes of the given measure, read straight from the stored notes without
+	 * rebuilding the measure.
+	 * @param measureIndex
+	 * @return notes
+	 */
+	@Override
+	NoteBuffer getMeasureNotes(int measureIndex) {
+		int first = measureFirstNote.get(measureIndex);
+		int end = measureFirstNote.get(measureIndex + 1);
+		int measureStart = measureIndex * measureLength;
+		NoteBuffer.Builder builder = new NoteBuffer.Builder(end - first);
+		for(int i = first; i < end; i++) {
+			int base = i * NOTE_INTS;
+			builder.add(notes.get(base + 2), notes.get(base + 1), notes.get(base) - measureStart, notes.get(base + 3) != 0);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the starting position and duration of all notes in the composition segment.
+	 * The map is built from the stored notes on every call rather than cached on the heap.
+	 * @return rhythm map
+	 */
+	@Override
+	public RhythmMap getRhythmMap() {
+		int count = noteCount();
+		RhythmMap.Builder builder = new RhythmMap.Builder(count);
+		for(int i = 0; i < count; i++) {
+			builder.put(notes.get(i * NOTE_INTS), notes.get(i * NOTE_INTS + 1));
+		}
+		return builder.build();
+	}
+
+	@Override
+	public PitchSet getPitchesAtPosition(int position) {
+		if(numMeasures == 0 || position < 0) return PitchSet.EMPTY;
+		int whichMeasure = position / measureLength;
+		if(whichMeasure >= numMeasures) return PitchSet.EMPTY;
+
+		// notes do not cross measures, so only this measure's notes starting at most maxDuration before can sound;
+		// a long note anywhere in the segment widens that to every note of the measure before the position
+		int first = measureFirstNote.get(whichMeasure);
+		int earliestStart = Math.max(whichMeasure * measureLength, position - maxDuration);
+		long low = 0;
+		long high = 0;
+		for(int i = firstStartAfter(first, measureFirstNote.get(whichMeasure + 1), position) - 1; i >= first; i--) {
+			int start = notes.get(i * NOTE_INTS);
+			if(start < earliestStart) break;
+			if(start + notes.get(i * NOTE_INTS + 1) > position) {
+				int pitch = notes.get(i * NOTE_INTS + 2);
+				low |= PitchSet.lowBit(pitch);
+				high |= PitchSet.highBit(pitch);
+			}
+		}
+		return PitchSet.fromBits(low, high);
+	}
+
+	@Override
+	public int getRemainingMeasureDurationAtPosition(int position) {
+		if(numMeasures == 0 || position < 0 || position >= getDuration()) return -1;
+		return measureLength - position % measureLength;
+	}
+
+	@Override
+	public Iterator<FMMeasure> iterator() {
+		return getMeasures().iterator();
+	}
+
+	/**
+	 * Returns the number of notes stored
+	 */
+	private int noteCount() {
+		return notes.size() / NOTE_INTS;
+	}
+
+	/**
+	 * Rebuilds the given measure on the heap from the stored notes
+	 */
+	private FMMeasure measure(int index) {
+		FMMeasure res = new FMMeasure(getTimeSignatureNumerator(), getTimeSignatureDenominator());
+		int measureStart = index * measureLength;
+		for(int i = measureFirstNote.get(index); i < measureFirstNote.get(index + 1); i++) {
+			int base = i * NOTE_INTS;
+			FMNote note = new FMNote(notes.get(base + 2), notes.get(base + 1), notes.get(base + 3) != 0);
+			res.addNote(note, notes.get(base) - measureStart);
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the index of the first note in [from, to) starting after the given position,
+	 * or to if none does
+	 */
+	private int firstStartAfter(int from, int to, int position) {
+		int lo = from;
+		int hi = to;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(notes.get(mid * NOTE_INTS) <= position) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,204 @@
+package framework.ds;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Forward-only position in a composition, for Packets which walk the piece from left to right.
+ * The cursor keeps track of the segment and measure it is in, so moving it and asking for the
+ * current segment, measure, key, time signature, remaining measure duration or chord costs
+ * amortized O(1) per step instead of a search from the start of the composition.
+ *
+ * The cursor reads the pattern when it is constructed; segments added to the composition
+ * afterwards are not seen. Positions are in FMNote rhythm value units. Past the end of the
+ * timeline there is no current segment or measure.
+ */
+public class TimelineCursor {
+
+	// segments of the timeline in playing order
+	private final FMCompositionSegment[] segments;
+
+	// duration of each segment, 0 for segments without measures
+	private final int[] durations;
+
+	// index of the current segment, or segments.length past the end
+	private int segmentIndex;
+
+	// position at which the current segment starts
+	private int segmentStart;
+
+	// current position
+	private int position;
+
+	// chord at the current position, or null if it has not been looked up since the cursor moved
+	private PitchSet chord;
+
+	/**
+	 * Constructs a cursor at the start of the given composition
+	 * @param composition
+	 */
+	public TimelineCursor(FMComposition composition) {
+		this(composition.getCompositionSegments());
+	}
+
+	/**
+	 * Constructs a cursor at the start of a timeline holding only the given segment
+	 * @param segment
+	 */
+	public TimelineCursor(FMCompositionSegment segment) {
+		this(Collections.singletonList(segment));
+	}
+
+	private TimelineCursor(List<FMCompositionSegment> pattern) {
+		segments = pattern.toArray(new FMCompositionSegment[pattern.size()]);
+		durations = new int[segments.length];
+		for(int i = 0; i < segments.length; i++) {
+			durations[i] = Math.max(0, segments[i].getDuration());
+		}
+		skipFinishedSegments();
+	}
+
+	/**
+	 * Moves the cursor forward.
+	 * @param ticks: distance to move, in FMNote rhythm value units
+	 * @throws IllegalArgumentException if ticks is negative
+	 */
+	public void advance(int ticks) {
+		if(ticks < 0) {
+			throw new IllegalArgumentException("A timeline cursor cannot move backwards (by " + ticks + ")");
+		}
+		if(ticks == 0) return;
+		position += ticks;
+		chord = null;
+		skipFinishedSegments();
+	}
+
+	/**
+	 * Moves the cursor forward to the given position.
+	 * @param newPosition
+	 * @throws IllegalArgumentException if the position is before the current one
+	 */
+	public void advanceTo(int newPosition) {
+		if(newPosition < position) {
+			throw new IllegalArgumentException("A timeline cursor cannot move back from " + position + " to " + newPosition);
+		}
+		advance(newPosition - position);
+	}
+
+	/**
+	 * Returns the current position from the start of the timeline.
+	 * @return position
+	 */
+	public int getPosition() { return position; }
+
+	/**
+	 * Returns whether the cursor has moved past the end of the timeline.
+	 * @return ended
+	 */
+	public boolean isAtEnd() { return segmentIndex == segments.length; }
+
+	/**
+	 * Returns the index in the pattern of the current segment.
+	 * @return index, or the number of segments past the end
+	 */
+	public int getSegmentIndex() { return segmentIndex; }
+
+	/**
+	 * Returns the current segment.
+	 * @return segment, or null past the end
+	 */
+	public FMCompositionSegment getSegment() {
+		return isAtEnd() ? null : segments[segmentIndex];
+	}
+
+	/**
+	 * Returns the current position from the start of the current segment.
+	 * @return position in segment, or -1 past the end
+	 */
+	public int getPositionInSegment() {
+		return isAtEnd() ? -1 : position - segmentStart;
+	}
+
+	/**
+	 * Returns the index within the current segment of the current measure.
+	 * @return measure index, or -1 past the end
+	 */
+	public int getMeasureIndex() {
+		if(isAtEnd()) return -1;
+		return (position - segmentStart) / measureLength();
+	}
+
+	/**
+	 * Returns the current measure.
+	 * @return measure, or null past the end
+	 */
+	public FMMeasure getMeasure() {
+		return isAtEnd() ? null : segments[segmentIndex].getMeasureAtPosition(position - segmentStart);
+	}
+
+	/**
+	 * Returns the current position from the start of the current measure.
+	 * @return position in measure, or -1 past the end
+	 */
+	public int getPositionInMeasure() {
+		if(isAtEnd()) return -1;
+		return (position - segmentStart) % measureLength();
+	}
+
+	/**
+	 * Returns the duration left in the current measure from the current position.
+	 * @return duration, or -1 past the end
+	 */
+	public int getRemainingMeasureDuration() {
+		if(isAtEnd()) return -1;
+		return measureLength() - getPositionInMeasure();
+	}
+
+	/**
+	 * Returns the key signature of the current segment.
+	 * @return key, or null past the end
+	 */
+	public KeySignature getKeySignature() {
+		return isAtEnd() ? null : segments[segmentIndex].getKeySignature();
+	}
+
+	/**
+	 * Returns the time signature of the current segment.
+	 * @return time signature, or null past the end
+	 */
+	public TimeSignature getTimeSignature() {
+		return isAtEnd() ? null : segments[segmentIndex].getTimeSignature();
+	}
+
+	/**
+	 * Returns the pitches sounding at the current position. The chord is looked up once per
+	 * position and kept until the cursor moves.
+	 * @return pitches, empty past the end
+	 */
+	public PitchSet getChord() {
+		PitchSet res = chord;
+		if(res == null) {
+			res = isAtEnd() ? PitchSet.EMPTY : segments[segmentIndex].getPitchesAtPosition(position - segmentStart);
+			chord = res;
+		}
+		return res;
+	}
+
+	/**
+	 * Moves to the segment containing the current position, skipping segments which end at or
+	 * before it, including those without measures
+	 */
+	private void skipFinishedSegments() {
+		while(segmentIndex < segments.length && position >= segmentStart + durations[segmentIndex]) {
+			segmentStart += durations[segmentIndex];
+			segmentIndex++;
+		}
+	}
+
+	/**
+	 * Returns the length of the measures of the current segment
+	 */
+	private int measureLength() {
+		return segments[segmentIndex].getMeasureStartPosition(1);
+	}
+}
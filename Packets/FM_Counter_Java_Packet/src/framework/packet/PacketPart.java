@@ -2,7 +2,11 @@ package framework.packet;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
 
+import framework.ds.FMPart;
 
 import jm.music.data.Part;
 
@@ -37,6 +41,18 @@ public class PacketPart {
 	 */
 	private Collection<Part> track;
 	
+	/**
+	 * Parts not yet converted to jMusic objects, added to the track
+	 * the first time it is requested. Null if there are none.
+	 */
+	private List<Supplier<Part>> pendingTrack;
+	
+	/**
+	 * Contains the parts added as FMParts, in order. Null if
+	 * there are none.
+	 */
+	private List<FMPart> fmTrack;
+	
 	/**
 	 * Represents the instrument that the part should be played on
 	 * using JMusic's instrument constants
@@ -63,9 +79,57 @@ public class PacketPart {
 	 * @return Parts generated by the Packet.
 	 */
 	public Collection<Part> getPart(){
+		if(pendingTrack != null) {
+			for(Supplier<Part> part : pendingTrack) {
+				track.add(part.get());
+			}
+			pendingTrack = null;
+		}
 		return track;
 	}
 	
+	/**
+	 * Adds a part to the track without building it yet. The part
+	 * is built the first time the parts are requested, so a Packet
+	 * which never reads this PacketPart never pays for it.
+	 * 
+	 * @param part supplies the part when it is first requested.
+	 */
+	public void addPendingPart(Supplier<Part> part){
+		if(pendingTrack == null) {
+			pendingTrack = new ArrayList<Supplier<Part>>();
+		}
+		pendingTrack.add(part);
+	}
+	
+	/**
+	 * Adds a part generated by the Packet. The part is readable
+	 * through getFMParts straight away; its jMusic Part is built
+	 * the first time the parts are requested through getPart.
+	 * 
+	 * @param part part generated by the Packet.
+	 */
+	public void addPart(FMPart part){
+		if(fmTrack == null) {
+			fmTrack = new ArrayList<FMPart>();
+		}
+		fmTrack.add(part);
+		addPendingPart(part::toJMusicPart);
+	}
+	
+	/**
+	 * Returns the parts added with addPart, without building any
+	 * jMusic objects. Parts added in any other way are not included.
+	 * 
+	 * @return read-only list of parts generated by the Packet.
+	 */
+	public List<FMPart> getFMParts(){
+		if(fmTrack == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(fmTrack);
+	}
+	
 	/**
 	 * Returns the mode chosen for the Packet.
 	 * 
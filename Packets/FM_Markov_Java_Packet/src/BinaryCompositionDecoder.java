@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+import framework.ds.FMComposition;
+import framework.packet.PacketPart.Packet_Enum;
+import jm.music.data.Part;
+
+/**
+ * Decoder for the binary encoding of a Composition described in
+ * BinaryWireFormat. Hands the values to a CompositionSink, usually a
+ * CompositionBuilder, so it produces the same objects as CompositionDecoder
+ * does for the JSON encoding.
+ */
+public class BinaryCompositionDecoder {
+
+	/** Receives the values read */
+	private CompositionSink sink;
+
+	/** Builder behind the sink, or null if the values go to another sink */
+	private CompositionBuilder builder;
+
+	/**
+	 * Constructs a decoder for a single composition
+	 */
+	public BinaryCompositionDecoder() {
+		this(new CompositionBuilder());
+	}
+
+	/**
+	 * Constructs a decoder handing the values read to the given builder
+	 * @param builder
+	 */
+	public BinaryCompositionDecoder(CompositionBuilder builder) {
+		this.sink = builder;
+		this.builder = builder;
+	}
+
+	/**
+	 * Constructs a decoder handing the values read to the given sink. The
+	 * decoder then builds no composition: decode returns null, as do the
+	 * getters for the composition and packet tree.
+	 * @param sink
+	 */
+	public BinaryCompositionDecoder(CompositionSink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Returns the decoded composition
+	 * @return composition
+	 */
+	public FMComposition getComposition() { return builder == null ? null : builder.getComposition(); }
+
+	/**
+	 * Returns the root of the decoded packet tree
+	 * @return root node, or null if the composition has no packet tree
+	 */
+	public DefaultMutableTreeNode getPacketTreeRoot() { return builder == null ? null : builder.getPacketTreeRoot(); }
+
+	/**
+	 * Returns the packet tree node flagged as active
+	 * @return active node, or null if none is flagged
+	 */
+	public DefaultMutableTreeNode getActiveElement() { return builder == null ? null : builder.getActiveElement(); }
+
+	/**
+	 * Decodes a composition, starting with its magic header
+	 * @param in: buffered stream positioned at the magic header
+	 * @return composition, or null if the decoder was given a sink other than a CompositionBuilder
+	 * @throws IOException if the stream cannot be read or is not a binary composition
+	 */
+	public FMComposition decode(InputStream in) throws IOException {
+		BinaryWireFormat.readMagic(in, BinaryWireFormat.COMPOSITION_MAGIC);
+
+		int metricsCount = BinaryWireFormat.readVarint(in);
+		for(int i = 0; i < metricsCount; i++) {
+			int num = BinaryWireFormat.readVarint(in);
+			int denom = BinaryWireFormat.readVarint(in);
+			int tempo = BinaryWireFormat.readVarint(in);
+			if(tempo < 1) {
+				// the metrics timeline needs a positive tempo to convert positions to time
+				System.err.println("Tempo " + tempo + " is below 1 beat per minute, defaulting to 1");
+				tempo = 1;
+			}
+			int tonic = BinaryWireFormat.readSignedVarint(in);
+			int[] intervals = new int[BinaryWireFormat.readVarint(in)];
+			for(int j = 0; j < intervals.length; j++) {
+				intervals[j] = BinaryWireFormat.readVarint(in);
+			}
+			int position = BinaryWireFormat.readSignedVarint(in);
+			sink.addMetrics(num, denom, tempo, tonic, intervals, position);
+		}
+
+		String[] names = new String[BinaryWireFormat.readVarint(in)];
+		for(int i = 0; i < names.length; i++) {
+			names[i] = BinaryWireFormat.readString(in);
+		}
+
+		int segmentCount = BinaryWireFormat.readVarint(in);
+		for(int i = 0; i < segmentCount; i++) {
+			String name = names[BinaryWireFormat.readVarint(in)];
+			sink.addSegment(name, readPart(in));
+		}
+
+		int patternLength = BinaryWireFormat.readVarint(in);
+		for(int i = 0; i < patternLength; i++) {
+			sink.addPatternEntry(names[BinaryWireFormat.readVarint(in)]);
+		}
+
+		int partCount = BinaryWireFormat.readVarint(in);
+		for(int i = 0; i < partCount; i++) {
+			sink.addPart(readPart(in));
+		}
+
+		if(BinaryWireFormat.readByte(in) != 0) {
+			sink.setPacketTreeRoot(readTree(in));
+		}
+		return builder == null ? null : builder.finish();
+	}
+
+	/**
+	 * Decodes a binary part message, as written by BinaryCompositionEncoder.writePart,
+	 * into a jMusic Part built by FMPart.toJMusicPart.
+	 * @param in: stream positioned at the part's magic header
+	 * @return part
+	 * @throws IOException if the stream cannot be read or is not a binary part
+	 */
+	public static Part decodePart(InputStream in) throws IOException {
+		BinaryWireFormat.readMagic(in, BinaryWireFormat.PART_MAGIC);
+		return readPart(in).toFMPart().toJMusicPart();
+	}
+
+	/**
+	 * Reads a part into an event list
+	 */
+	static EventList readPart(InputStream in) throws IOException {
+		EventList events = new EventList();
+		events.setName(BinaryWireFormat.readString(in));
+		int eventCount = BinaryWireFormat.readVarint(in);
+		for(int i = 0; i < eventCount; i++) {
+			int duration = BinaryWireFormat.readVarint(in);
+			int pitchCount = BinaryWireFormat.readVarint(in);
+			for(int j = 0; j < pitchCount; j++) {
+				events.addPitch(BinaryWireFormat.readPitch(in));
+			}
+			events.endEvent(duration);
+		}
+		return events;
+	}
+
+	/**
+	 * Reads a packet tree node and its children
+	 */
+	private DefaultMutableTreeNode readTree(InputStream in) throws IOException {
+		int flags = BinaryWireFormat.readByte(in);
+		int modeIndex = BinaryWireFormat.readByte(in);
+		Packet_Enum mode = modeIndex < Packet_Enum.values().length ? Packet_Enum.values()[modeIndex] : Packet_Enum.Melody;
+		EventList part = (flags & BinaryWireFormat.FLAG_HAS_PART) != 0 ? readPart(in) : null;
+		DefaultMutableTreeNode node = sink.createTreeNode(mode, part, (flags & BinaryWireFormat.FLAG_ACTIVE) != 0);
+		int childCount = BinaryWireFormat.readVarint(in);
+		for(int i = 0; i < childCount; i++) {
+			node.add(readTree(in));
+		}
+		return node;
+	}
+}
@@ -0,0 +1,189 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import jm.constants.Pitches;
+
+/**
+ * Constants and primitive codecs of the compact binary encoding of the
+ * Composition and Part schemas described in README.md. A binary message
+ * starts with a magic header, which is never valid JSON, so the wrapper can
+ * accept either encoding on the same stream.
+ *
+ * All integers are unsigned LEB128 varints unless noted; signed values are
+ * zigzag encoded first. Strings are a varint byte length followed by UTF-8.
+ * Pitches are packed one byte each: 0-127 are MIDI pitches and 0x80 is a rest.
+ * <pre>
+ * composition := COMPOSITION_MAGIC
+ *                count metrics*
+ *                count string*                    (segment name table)
+ *                count (nameIndex part)*           (pattern segments)
+ *                count nameIndex*                  (pattern)
+ *                count part*                       (parts)
+ *                byte hasTree [node]               (packet tree)
+ * metrics     := num denom tempo zigzag(tonic) count interval* zigzag(position)
+ * part        := string name, count event*
+ * event       := duration count pitchByte*
+ * node        := byte flags (1 = active, 2 = has part), byte mode
+ *                (0 melody, 1 harmony, 2 support), [part], count node*
+ * partMessage := PART_MAGIC part
+ * </pre>
+ */
+public final class BinaryWireFormat {
+
+	/** Header of a binary composition: "FMBC" */
+	public static final byte[] COMPOSITION_MAGIC = {'F', 'M', 'B', 'C'};
+
+	/** Header of a binary part: "FMBP" */
+	public static final byte[] PART_MAGIC = {'F', 'M', 'B', 'P'};
+
+	/** Packed byte standing for jm.constants.Pitches.REST */
+	public static final int REST_BYTE = 0x80;
+
+	/** Node flag of the active packet tree node */
+	public static final int FLAG_ACTIVE = 1;
+
+	/** Node flag of a packet tree node carrying a part */
+	public static final int FLAG_HAS_PART = 2;
+
+	private BinaryWireFormat() {
+	}
+
+	/**
+	 * Writes an unsigned varint
+	 */
+	public static void writeVarint(OutputStream out, int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Reads an unsigned varint
+	 * @throws IOException if it runs past five bytes or past 32 bits
+	 */
+	public static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 28; shift += 7) {
+			int b = readByte(in);
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		// the fifth byte holds the top 4 bits and ends the varint
+		int b = readByte(in);
+		if((b & ~0x0F) != 0) {
+			throw new IOException("Malformed varint");
+		}
+		return value | b << 28;
+	}
+
+	/**
+	 * Writes a signed varint
+	 */
+	public static void writeSignedVarint(OutputStream out, int value) throws IOException {
+		writeVarint(out, (value << 1) ^ (value >> 31));
+	}
+
+	/**
+	 * Reads a signed varint
+	 */
+	public static int readSignedVarint(InputStream in) throws IOException {
+		int value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Writes a length-prefixed UTF-8 string; null is written as an empty string
+	 */
+	public static void writeString(OutputStream out, String value) throws IOException {
+		byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a length-prefixed UTF-8 string
+	 */
+	public static String readString(InputStream in) throws IOException {
+		byte[] bytes = new byte[readVarint(in)];
+		int off = 0;
+		while(off < bytes.length) {
+			int n = in.read(bytes, off, bytes.length - off);
+			if(n < 0) {
+				throw new EOFException("Stream ended inside a string");
+			}
+			off += n;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a pitch as one packed byte
+	 * @throws IOException if the pitch is neither a MIDI pitch nor a rest
+	 */
+	public static void writePitch(OutputStream out, int pitch) throws IOException {
+		if(pitch == Pitches.REST) {
+			out.write(REST_BYTE);
+		} else if(pitch >= 0 && pitch < REST_BYTE) {
+			out.write(pitch);
+		} else {
+			throw new IOException("Pitch " + pitch + " cannot be packed");
+		}
+	}
+
+	/**
+	 * Reads a pitch packed in one byte
+	 */
+	public static int readPitch(InputStream in) throws IOException {
+		int b = readByte(in);
+		return b == REST_BYTE ? Pitches.REST : b;
+	}
+
+	/**
+	 * Reads one byte, failing at the end of the stream
+	 */
+	public static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if(b < 0) {
+			throw new EOFException("Unexpected end of binary message");
+		}
+		return b;
+	}
+
+	/**
+	 * Checks whether the stream starts with a magic header without consuming it
+	 * @param in: stream supporting mark and reset
+	 * @param magic: expected header
+	 * @return whether the next bytes are the header
+	 */
+	public static boolean hasMagic(InputStream in, byte[] magic) throws IOException {
+		in.mark(magic.length);
+		boolean match = true;
+		for(byte m : magic) {
+			if(in.read() != m) {
+				match = false;
+				break;
+			}
+		}
+		in.reset();
+		return match;
+	}
+
+	/**
+	 * Reads and checks a magic header
+	 * @throws IOException if the stream does not start with the header
+	 */
+	public static void readMagic(InputStream in, byte[] magic) throws IOException {
+		for(byte m : magic) {
+			if(readByte(in) != m) {
+				throw new IOException("Not a binary FuseMuse message");
+			}
+		}
+	}
+}
@@ -0,0 +1,367 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import framework.ds.FMComposition;
+import framework.packet.PacketPart.Packet_Enum;
+
+/**
+ * Single-pass decoder for the JSON Composition handed to a Packet. Reads the
+ * token stream with a Gson JsonReader and hands the values to a
+ * CompositionSink, usually a CompositionBuilder, which fills the
+ * FMComposition, its segments and measures, the jMusic parts of the score
+ * and the packet tree as it goes, without building an intermediate
+ * JsonObject tree.
+ */
+public class CompositionDecoder {
+
+	/** Receives the values read */
+	private CompositionSink sink;
+
+	/** Builder behind the sink, or null if the values go to another sink */
+	private CompositionBuilder builder;
+
+	/** Whether previously generated parts are read, or skipped unparsed */
+	private boolean readParts = true;
+
+	/** Whether the packet tree is read, or skipped unparsed */
+	private boolean readPacketTree = true;
+
+	/**
+	 * Constructs a decoder for a single composition
+	 */
+	public CompositionDecoder() {
+		this(new CompositionBuilder());
+	}
+
+	/**
+	 * Constructs a decoder handing the values read to the given builder
+	 * @param builder
+	 */
+	public CompositionDecoder(CompositionBuilder builder) {
+		this.sink = builder;
+		this.builder = builder;
+	}
+
+	/**
+	 * Constructs a decoder handing the values read to the given sink. The
+	 * decoder then builds no composition: decode returns null, as do the
+	 * getters for the composition and packet tree.
+	 * @param sink
+	 */
+	public CompositionDecoder(CompositionSink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Sets whether the composition's previously generated parts are read. A
+	 * Packet which never requests the score can skip them.
+	 * @param readParts
+	 */
+	public void setReadParts(boolean readParts) { this.readParts = readParts; }
+
+	/**
+	 * Sets whether the packet tree is read. A Packet which never uses its
+	 * tree node can skip it, leaving the root and active element null.
+	 * @param readPacketTree
+	 */
+	public void setReadPacketTree(boolean readPacketTree) { this.readPacketTree = readPacketTree; }
+
+	/**
+	 * Returns the decoded composition
+	 * @return composition
+	 */
+	public FMComposition getComposition() { return builder == null ? null : builder.getComposition(); }
+
+	/**
+	 * Returns the root of the decoded packet tree
+	 * @return root node, or null if the composition has no packet tree
+	 */
+	public DefaultMutableTreeNode getPacketTreeRoot() { return builder == null ? null : builder.getPacketTreeRoot(); }
+
+	/**
+	 * Returns the packet tree node flagged as active
+	 * @return active node, or null if none is flagged
+	 */
+	public DefaultMutableTreeNode getActiveElement() { return builder == null ? null : builder.getActiveElement(); }
+
+	/**
+	 * Decodes a composition from the given character stream
+	 * @param json: reader positioned at the start of the composition object
+	 * @return composition, or null if the decoder was given a sink other than a CompositionBuilder
+	 * @throws IOException if the stream cannot be read or is not a composition
+	 */
+	public FMComposition decode(Reader json) throws IOException {
+		JsonReader reader = new JsonReader(json);
+		reader.setLenient(true);
+		return decode(reader);
+	}
+
+	/**
+	 * Decodes a composition from the given token stream
+	 * @param reader: positioned at the start of the composition object
+	 * @return composition, or null if the decoder was given a sink other than a CompositionBuilder
+	 * @throws IOException if the stream cannot be read or is not a composition
+	 */
+	public FMComposition decode(JsonReader reader) throws IOException {
+		reader.beginObject();
+		while(reader.hasNext()) {
+			switch(reader.nextName()) {
+			case "metrics":
+				reader.beginArray();
+				while(reader.hasNext()) {
+					readMetrics(reader);
+				}
+				reader.endArray();
+				break;
+			case "patternSegments":
+				reader.beginArray();
+				while(reader.hasNext()) {
+					readSegment(reader);
+				}
+				reader.endArray();
+				break;
+			case "pattern":
+				reader.beginArray();
+				while(reader.hasNext()) {
+					sink.addPatternEntry(reader.nextString());
+				}
+				reader.endArray();
+				break;
+			case "parts":
+				if(!readParts) {
+					reader.skipValue();
+					break;
+				}
+				reader.beginArray();
+				while(reader.hasNext()) {
+					sink.addPart(readPart(reader));
+				}
+				reader.endArray();
+				break;
+			case "packetTreeRoot":
+				if(!readPacketTree) {
+					reader.skipValue();
+					break;
+				}
+				sink.setPacketTreeRoot(readTree(reader));
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return builder == null ? null : builder.finish();
+	}
+
+	/**
+	 * Reads one composition metrics entry
+	 */
+	private void readMetrics(JsonReader reader) throws IOException {
+		int num = 4;
+		int denom = 4;
+		int tempo = 60;
+		int tonic = 0;
+		int[] intervals = new int[0];
+		int position = 0;
+		reader.beginObject();
+		while(reader.hasNext()) {
+			switch(reader.nextName()) {
+			case "timeSignature":
+				reader.beginObject();
+				while(reader.hasNext()) {
+					switch(reader.nextName()) {
+					case "num":
+						num = reader.nextInt();
+						break;
+					case "denom":
+						denom = reader.nextInt();
+						break;
+					default:
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+				break;
+			case "tempo":
+				double bpm = reader.nextDouble();
+				tempo = (int)bpm;
+				if(tempo < 1) {
+					// the metrics timeline needs a positive tempo to convert positions to time
+					System.err.println("Tempo " + bpm + " is below 1 beat per minute, defaulting to 1");
+					tempo = 1;
+				}
+				break;
+			case "key":
+				reader.beginObject();
+				while(reader.hasNext()) {
+					switch(reader.nextName()) {
+					case "tonic":
+						tonic = reader.nextInt();
+						break;
+					case "intervals":
+						List<Integer> intervalList = new ArrayList<>(7);
+						reader.beginArray();
+						while(reader.hasNext()) {
+							intervalList.add(reader.nextInt());
+						}
+						reader.endArray();
+						intervals = new int[intervalList.size()];
+						for(int i = 0; i < intervals.length; i++) {
+							intervals[i] = intervalList.get(i);
+						}
+						break;
+					default:
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+				break;
+			case "position":
+				position = reader.nextInt();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		sink.addMetrics(num, denom, tempo, tonic, intervals, position);
+	}
+
+	/**
+	 * Reads a pattern segment's name and chord progression
+	 */
+	private void readSegment(JsonReader reader) throws IOException {
+		String name = null;
+		EventList chordProgression = new EventList();
+		reader.beginObject();
+		while(reader.hasNext()) {
+			switch(reader.nextName()) {
+			case "name":
+				name = reader.nextString();
+				break;
+			case "chordProgression":
+				chordProgression = readPart(reader);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		sink.addSegment(name, chordProgression);
+	}
+
+	/**
+	 * Reads a Part object into an event list
+	 */
+	private EventList readPart(JsonReader reader) throws IOException {
+		EventList events = new EventList();
+		reader.beginObject();
+		while(reader.hasNext()) {
+			switch(reader.nextName()) {
+			case "name":
+				events.setName(reader.nextString());
+				break;
+			case "events":
+				reader.beginArray();
+				while(reader.hasNext()) {
+					readEvent(reader, events);
+				}
+				reader.endArray();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return events;
+	}
+
+	/**
+	 * Reads a note or chord event
+	 */
+	private void readEvent(JsonReader reader, EventList events) throws IOException {
+		int duration = 0;
+		reader.beginObject();
+		while(reader.hasNext()) {
+			switch(reader.nextName()) {
+			case "pitch":
+				events.addPitch(reader.nextInt());
+				break;
+			case "pitches":
+				reader.beginArray();
+				while(reader.hasNext()) {
+					events.addPitch(reader.nextInt());
+				}
+				reader.endArray();
+				break;
+			case "duration":
+				duration = (int)Math.round(reader.nextDouble());
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		events.endEvent(duration);
+	}
+
+	/**
+	 * Reads a PacketPart object and its children into a tree node
+	 */
+	private DefaultMutableTreeNode readTree(JsonReader reader) throws IOException {
+		if(reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		Packet_Enum mode = Packet_Enum.Melody;
+		EventList part = null;
+		boolean active = false;
+		List<DefaultMutableTreeNode> children = new ArrayList<>();
+		reader.beginObject();
+		while(reader.hasNext()) {
+			switch(reader.nextName()) {
+			case "mode":
+				String modeName = reader.nextString();
+				if(modeName.equalsIgnoreCase("harmony")) {
+					mode = Packet_Enum.Harmony;
+				}
+				if(modeName.equalsIgnoreCase("support")) {
+					mode = Packet_Enum.Support;
+				}
+				break;
+			case "part":
+				part = readPart(reader);
+				break;
+			case "children":
+				reader.beginArray();
+				while(reader.hasNext()) {
+					DefaultMutableTreeNode child = readTree(reader);
+					if(child != null) {
+						children.add(child);
+					}
+				}
+				reader.endArray();
+				break;
+			case "isActive":
+				active = reader.nextBoolean();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		DefaultMutableTreeNode node = sink.createTreeNode(mode, part, active);
+		for(DefaultMutableTreeNode child : children) {
+			node.add(child);
+		}
+		return node;
+	}
+}
@@ -0,0 +1,58 @@
+import javax.swing.tree.DefaultMutableTreeNode;
+
+import framework.packet.PacketPart.Packet_Enum;
+
+/**
+ * Receives the values of a Composition as a decoder reads them, in the order
+ * they appear in the input. CompositionBuilder builds the FMComposition and
+ * packet tree from them, and BinaryCompositionEncoder records them to write
+ * the binary encoding.
+ */
+public interface CompositionSink {
+
+	/**
+	 * Adds a composition metrics entry
+	 * @param num: beats per measure
+	 * @param denom: note that gets the beat
+	 * @param tempo: in beats per minute
+	 * @param tonic: pitch of the tonic
+	 * @param intervals: semitones between the degrees of the key's scale
+	 * @param position: start of the entry in FMNote rhythm value units
+	 */
+	void addMetrics(int num, int denom, int tempo, int tonic, int[] intervals, int position);
+
+	/**
+	 * Adds a pattern segment
+	 * @param name: name of the segment
+	 * @param chordProgression
+	 */
+	void addSegment(String name, EventList chordProgression);
+
+	/**
+	 * Appends a segment name to the composition's pattern
+	 * @param name
+	 */
+	void addPatternEntry(String name);
+
+	/**
+	 * Adds a previously generated part
+	 * @param events
+	 */
+	void addPart(EventList events);
+
+	/**
+	 * Creates a packet tree node. Children are added to the returned node by
+	 * the caller.
+	 * @param mode: mode of the packet at this node
+	 * @param part: part generated at this node, or null
+	 * @param active: whether this is the node the packet is executed from
+	 * @return node
+	 */
+	DefaultMutableTreeNode createTreeNode(Packet_Enum mode, EventList part, boolean active);
+
+	/**
+	 * Sets the root of the packet tree
+	 * @param root
+	 */
+	void setPacketTreeRoot(DefaultMutableTreeNode root);
+}
@@ -0,0 +1,134 @@
+import java.util.Arrays;
+
+import framework.ds.FMPart;
+
+/**
+ * Growable, array-backed list of the note and chord events of a JSON Part,
+ * as read by the composition decoders. Durations are kept in FMNote rhythm
+ * value units, and the pitches of all events share one array, with each
+ * event holding the index just past its last pitch.
+ */
+public class EventList {
+
+	/** Initial capacity of the arrays */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Name of the part, or null if it has none */
+	private String name;
+
+	/** Duration of each event */
+	private int[] durations;
+
+	/** Index in pitches just past each event's last pitch */
+	private int[] pitchEnds;
+
+	/** Number of events */
+	private int size;
+
+	/** Pitches of all events, in order */
+	private int[] pitches;
+
+	/** Number of pitches, including those of the event being read */
+	private int pitchCount;
+
+	/**
+	 * Constructs an empty event list
+	 */
+	public EventList() {
+		durations = new int[INITIAL_CAPACITY];
+		pitchEnds = new int[INITIAL_CAPACITY];
+		pitches = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Returns the name of the part
+	 * @return name, or null
+	 */
+	public String getName() { return name; }
+
+	/**
+	 * Sets the name of the part
+	 * @param name
+	 */
+	public void setName(String name) { this.name = name; }
+
+	/**
+	 * Adds a pitch to the event being read
+	 * @param pitch
+	 */
+	public void addPitch(int pitch) {
+		if(pitchCount == pitches.length) {
+			pitches = Arrays.copyOf(pitches, pitchCount * 2);
+		}
+		pitches[pitchCount++] = pitch;
+	}
+
+	/**
+	 * Ends the event being read, which holds every pitch added since the
+	 * previous event ended.
+	 * @param duration: in FMNote rhythm value units
+	 */
+	public void endEvent(int duration) {
+		if(size == durations.length) {
+			durations = Arrays.copyOf(durations, size * 2);
+			pitchEnds = Arrays.copyOf(pitchEnds, size * 2);
+		}
+		durations[size] = duration;
+		pitchEnds[size] = pitchCount;
+		size++;
+	}
+
+	/**
+	 * Returns the number of events
+	 * @return size
+	 */
+	public int size() { return size; }
+
+	/**
+	 * Returns the duration of the given event
+	 * @param event: index of the event
+	 * @return duration in FMNote rhythm value units
+	 */
+	public int getDuration(int event) { return durations[event]; }
+
+	/**
+	 * Returns the number of pitches in the given event: 1 for a note, more for a chord
+	 * @param event: index of the event
+	 * @return number of pitches
+	 */
+	public int getPitchCount(int event) {
+		return pitchEnds[event] - pitchStart(event);
+	}
+
+	/**
+	 * Returns a pitch of the given event
+	 * @param event: index of the event
+	 * @param n: index of the pitch within the event
+	 * @return pitch
+	 */
+	public int getPitch(int event, int n) {
+		return pitches[pitchStart(event) + n];
+	}
+
+	/**
+	 * Copies the events into an immutable FMPart with the same name
+	 * @return part
+	 */
+	public FMPart toFMPart() {
+		FMPart.Builder builder = new FMPart.Builder(name, size);
+		for(int i = 0; i < size; i++) {
+			for(int j = pitchStart(i); j < pitchEnds[i]; j++) {
+				builder.addPitch(pitches[j]);
+			}
+			builder.endEvent(durations[i]);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the index in pitches of the first pitch of the given event
+	 */
+	private int pitchStart(int event) {
+		return event == 0 ? 0 : pitchEnds[event - 1];
+	}
+}
@@ -11,10 +11,11 @@ import java.util.Set;
 import javax.swing.JOptionPane;
 import javax.swing.tree.DefaultMutableTreeNode;
 
-import framework.packet.FMPacket;
+import framework.packet.FMSeededPacket;
 import framework.ds.FMComposition;
 import framework.ds.FMCompositionSegment;
 import framework.ds.KeySignature;
+import framework.ds.TimelineCursor;
 import jm.constants.Pitches;
 import jm.music.data.Note;
 import jm.music.data.Part;
@@ -27,7 +28,7 @@ import jm.music.data.Phrase;
  * @author Jake
  *
  */
-public class IntervalMarkovChainPacket implements FMPacket{
+public class IntervalMarkovChainPacket implements FMSeededPacket{
 
 	/** The name of the markov chain data file, including the extension if any */
 	private static final String MARKOV_CHAIN_FILE = "markovChainData";
@@ -38,8 +39,6 @@ public class IntervalMarkovChainPacket implements FMPacket{
 	/** Order of the markov chain data, detected during execution */
 	private int order = -1;
 	
-	private FMComposition compo;
-	
 	/** true when a triplet is being executed */
 	private boolean inTriplet = false;
 	
@@ -52,13 +51,27 @@ public class IntervalMarkovChainPacket implements FMPacket{
 	/** Random number generator */
 	Random rng;
 	
+	/** Seed supplied through setSeed, or null to ask the user for one */
+	private String seed;
+	
+	/**
+	 * Sets the seed used instead of asking the user for one.
+	 */
+	@Override
+	public void setSeed(String seed) {
+		this.seed = seed;
+	}
+	
 	/**
 	 * Executor method for the packet.  Gathers required information and executes the Markov chain.
 	 */
 	@Override
 	public Collection<Part> executeMelody(FMComposition composition, DefaultMutableTreeNode node) {
 		
-		String seed = JOptionPane.showInputDialog("Please Enter a seed, or leave blank for a random seed.");
+		String seed = this.seed;
+		if(seed == null) {
+			seed = JOptionPane.showInputDialog("Please Enter a seed, or leave blank for a random seed.");
+		}
 		if(seed.equals("")) {
 			//System.out.println("No seed entered");
 			rng = new Random();
@@ -66,7 +79,9 @@ public class IntervalMarkovChainPacket implements FMPacket{
 			rng = new Random(seed.hashCode());
 		}
 		
-		compo = composition;
+		//The packet may be executed more than once by a PacketHost
+		inTriplet = false;
+		remainingTriplet = 0;
 		
 		Collection<Part> allparts = new LinkedList<>();
 		
@@ -116,16 +131,17 @@ public class IntervalMarkovChainPacket implements FMPacket{
 				phrase.setTempo(fmcs.getTempo());
 				phrase.setDenominator(fmcs.getTimeSignatureDenominator());
 				phrase.setNumerator(fmcs.getTimeSignatureNumerator());
-				String lastNote = selectNote(markovTable, String.join("|", Collections.nCopies(order, "~")), composition.getKeySignatureAtPosition(0));
+				//The phrase is generated once per segment, so positions are counted from the segment's start
+				TimelineCursor cursor = new TimelineCursor(fmcs);
+				String lastNote = selectNote(markovTable, String.join("|", Collections.nCopies(order, "~")), fmcs.getKeySignature());
 				
-				double positionInPhrase = 0;
 				//System.out.println(lastNote);
 				
-				while(positionInPhrase < fmcs.getDuration()) {
-					//System.out.println(positionInPhrase + ", " + fmcs.getDuration());
+				while(cursor.getPosition() < fmcs.getDuration()) {
+					//System.out.println(cursor.getPosition() + ", " + fmcs.getDuration());
 					lastNote = selectNote(markovTable, lastNote, fmcs.getKeySignature());
-					Note added = addNote(phrase, 0, lastNote);
-					positionInPhrase += FMComposition.getFMRhythmValue(added.getRhythmValue());
+					Note added = addNote(phrase, cursor, lastNote);
+					cursor.advance(FMComposition.getFMRhythmValue(added.getRhythmValue()));
 					//System.out.println(lastNote);
 				}
 				Part part = new Part(phrase);
@@ -152,17 +168,17 @@ public class IntervalMarkovChainPacket implements FMPacket{
 	/**
 	 * Adds a note to the given phrase
 	 * @param phrase: The phrase to add the note to
+	 * @param cursor: Position of the note in the segment being generated
 	 * @param state: The current state, from which the pitch is extracted
-	 * @param duration: The duration of the note to add
 	 * @return Note: the note added to the phrase
 	 */
-	private Note addNote(Phrase phrase, int position, String state) {
+	private Note addNote(Phrase phrase, TimelineCursor cursor, String state) {
 		//Get the note to play from the tonic and interval.
 		String note = state.substring(state.lastIndexOf('|')+1);
 		String pitchOffsetStr = note.substring(0, note.lastIndexOf('X'));
 		String durationStr = note.substring(note.lastIndexOf('X')+1);
 		
-		int lastNote = compo.getKeySignatureAtPosition(position).getTonic();
+		int lastNote = cursor.getKeySignature().getTonic();
 		double duration = 0;
 		try{
 			int lastNoteInterval = Integer.parseInt(pitchOffsetStr);
@@ -183,7 +199,7 @@ public class IntervalMarkovChainPacket implements FMPacket{
 			else if (tripletC == 1 || tripletC == 2 || tripletC == 4 || tripletC == 8) {
 				double threeTriplet = 3 * duration;
 				int fmThreeTriplet = FMComposition.getFMRhythmValue(threeTriplet);
-				int fmMeasureRemainingDuration = compo.getRemainingMeasureDurationAtPosition(position);
+				int fmMeasureRemainingDuration = cursor.getRemainingMeasureDuration();
 				if (fmThreeTriplet >= fmMeasureRemainingDuration) {
 					//System.out.println("Encountered a triplet note, but playing an eighth note, triplet will not fit");
 					duration = .5;
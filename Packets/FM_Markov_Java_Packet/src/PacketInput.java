@@ -0,0 +1,227 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered view of the input the Shell hands to a Packet: a mode token
+ * followed by a JSON composition, or by the path of a composition file on
+ * one line and optionally the path of an output file on the next. The mode
+ * is read a byte at a time from the buffer, and the rest of the stream is
+ * handed to the parser as a UTF-8 Reader, so the composition is never
+ * collected into one String.
+ * A composition in the binary encoding of BinaryWireFormat is recognised by
+ * its magic header and handed over as the raw stream instead.
+ */
+public class PacketInput {
+
+	/** Size of the byte buffer placed over the raw stream */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** Buffered stream the mode and composition are read from */
+	private final InputStream in;
+
+	/**
+	 * Constructs a PacketInput over the given stream, usually System.in
+	 * @param stream: raw input from the Shell
+	 */
+	public PacketInput(InputStream stream) {
+		in = new BufferedInputStream(stream, BUFFER_SIZE);
+	}
+
+	/**
+	 * Reads the mode token ("melodic", "harmonic" or "supporting"). Leading
+	 * whitespace and control characters are skipped, and the token ends at
+	 * the first whitespace character after it.
+	 * @return mode, or an empty string if the stream is empty
+	 * @throws IOException
+	 */
+	public String readMode() throws IOException {
+		return readToken();
+	}
+
+	/**
+	 * Reads the next whitespace-delimited ASCII token, consuming the single
+	 * whitespace character which ends it.
+	 * @return token, or an empty string if the stream has ended
+	 * @throws IOException
+	 */
+	public String readToken() throws IOException {
+		StringBuilder token = new StringBuilder();
+		int v = in.read();
+		while(v != -1 && v <= ' ') {
+			v = in.read();
+		}
+		while(v > ' ') {
+			token.append((char)v);
+			v = in.read();
+		}
+		return token.toString();
+	}
+
+	/**
+	 * Returns a UTF-8 Reader over exactly the next length bytes of the stream.
+	 * The frame must be fully read or skipped with {@link Frame#skipRemaining()}
+	 * before anything else is read from this PacketInput.
+	 * @param length: number of bytes in the frame
+	 * @return frame
+	 */
+	public Frame openFrame(long length) {
+		return new Frame(in, length);
+	}
+
+	/**
+	 * Checks whether the mode token is followed by an inline composition, JSON
+	 * or binary, rather than the path of a composition file. Whitespace before
+	 * the composition is consumed. Should be called after readMode.
+	 * @return whether a composition follows
+	 * @throws IOException
+	 */
+	public boolean isInline() throws IOException {
+		int v;
+		do {
+			in.mark(1);
+			v = in.read();
+		} while(v != -1 && v <= ' ');
+		in.reset();
+		return v == -1 || v == '{' || BinaryWireFormat.hasMagic(in, BinaryWireFormat.COMPOSITION_MAGIC);
+	}
+
+	/**
+	 * Reads the next line as UTF-8, without its line terminator
+	 * @return line with surrounding whitespace removed, or an empty string if the stream has ended
+	 * @throws IOException
+	 */
+	public String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int v = in.read();
+		while(v != -1 && v != '\n') {
+			line.write(v);
+			v = in.read();
+		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+	}
+
+	/**
+	 * Returns the buffered remainder of the stream, holding an inline composition.
+	 * Should only be called once, after readMode.
+	 * @return stream positioned just after the mode token
+	 */
+	public InputStream openStream() {
+		return in;
+	}
+
+	/**
+	 * Returns a UTF-8 Reader over the remainder of the stream. Should only be
+	 * called once, after readMode.
+	 * @return reader positioned just after the mode token
+	 */
+	public Reader openReader() {
+		return new InputStreamReader(in, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A fixed-length window onto the stream, used by PacketHost to read one
+	 * framed composition without consuming the request after it.
+	 */
+	public static class Frame extends FilterInputStream {
+
+		/** Bytes left in the frame */
+		private long remaining;
+
+		/** Bytes left in the frame at the last mark */
+		private long markedRemaining;
+
+		private Frame(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		/**
+		 * Returns a UTF-8 Reader over the frame
+		 * @return reader
+		 */
+		public Reader openReader() {
+			return new InputStreamReader(this, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(remaining <= 0) return -1;
+			int v = in.read();
+			if(v != -1) remaining--;
+			return v;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(remaining <= 0) return -1;
+			int n = in.read(b, off, (int)Math.min(len, remaining));
+			if(n > 0) remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return in.markSupported();
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			in.mark(readlimit);
+			markedRemaining = remaining;
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			in.reset();
+			remaining = markedRemaining;
+		}
+
+		/**
+		 * Checks whether the frame holds a composition in the binary encoding,
+		 * without consuming anything
+		 * @return whether the frame starts with BinaryWireFormat.COMPOSITION_MAGIC
+		 * @throws IOException
+		 */
+		public boolean isBinary() throws IOException {
+			return BinaryWireFormat.hasMagic(this, BinaryWireFormat.COMPOSITION_MAGIC);
+		}
+
+		/**
+		 * Discards whatever is left of the frame
+		 * @throws IOException if the stream ends before the frame does
+		 */
+		public void skipRemaining() throws IOException {
+			while(remaining > 0) {
+				if(skip(remaining) <= 0 && read() == -1) {
+					throw new EOFException("Stream ended inside a frame");
+				}
+			}
+		}
+
+		/**
+		 * Closing a frame leaves the underlying stream open
+		 */
+		@Override
+		public void close() {
+		}
+	}
+}
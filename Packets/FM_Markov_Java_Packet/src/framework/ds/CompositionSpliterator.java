@@ -0,0 +1,205 @@
+package framework.ds;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the notes of a composition in playing order, as FMEvents, backing
+ * FMComposition.events and parallelEvents. It indexes the composition's measures when it is
+ * constructed, counting their notes without copying them, so its size is exact and every
+ * split has an exact size too. Splits fall on segment boundaries while a range spans several
+ * segments, and on measure boundaries within a segment. Notes are read from their measures
+ * only as they are traversed.
+ *
+ * The composition should not change while it is being traversed.
+ */
+public final class CompositionSpliterator implements Spliterator<FMEvent> {
+
+	/**
+	 * Measures of the composition in playing order, shared by a spliterator and its splits
+	 */
+	private static final class MeasureTable {
+
+		// segments of the pattern
+		final FMCompositionSegment[] segments;
+
+		// index in the pattern of each measure's segment
+		final int[] measureSegment;
+
+		// index of each measure within its segment
+		final int[] measureInSegment;
+
+		// start of each measure from the start of the composition
+		final int[] measureStarts;
+
+		// number of notes before each measure, followed by the number of notes in the composition
+		final long[] noteOffsets;
+
+		MeasureTable(List<FMCompositionSegment> pattern) {
+			segments = pattern.toArray(new FMCompositionSegment[pattern.size()]);
+			int measureCount = 0;
+			for(FMCompositionSegment fmcs : segments) {
+				measureCount += fmcs.getNumMeasures();
+			}
+			measureSegment = new int[measureCount];
+			measureInSegment = new int[measureCount];
+			measureStarts = new int[measureCount];
+			noteOffsets = new long[measureCount + 1];
+			int m = 0;
+			int segmentStart = 0;
+			for(int s = 0; s < segments.length; s++) {
+				FMCompositionSegment fmcs = segments[s];
+				for(int i = 0; i < fmcs.getNumMeasures(); i++) {
+					measureSegment[m] = s;
+					measureInSegment[m] = i;
+					measureStarts[m] = segmentStart + fmcs.getMeasureStartPosition(i);
+					noteOffsets[m + 1] = noteOffsets[m] + fmcs.getMeasureNoteCount(i);
+					m++;
+				}
+				segmentStart += Math.max(0, fmcs.getDuration());
+			}
+		}
+	}
+
+	// measures of the composition
+	private final MeasureTable table;
+
+	// index of the current measure
+	private int measure;
+
+	// index of the measure just past this spliterator's range
+	private final int fence;
+
+	// notes of the current measure, or null if it has not been read
+	private NoteBuffer notes;
+
+	// index in the current measure of the next note
+	private int note;
+
+	/**
+	 * Constructs a spliterator over every note of the given composition
+	 * @param composition
+	 */
+	public CompositionSpliterator(FMComposition composition) {
+		this(new MeasureTable(composition.getCompositionSegments()), 0, -1);
+	}
+
+	private CompositionSpliterator(MeasureTable table, int origin, int fence) {
+		this.table = table;
+		this.measure = origin;
+		this.fence = fence < 0 ? table.measureStarts.length : fence;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super FMEvent> action) {
+		while(measure < fence) {
+			if(notes == null) {
+				notes = readMeasure(measure);
+				note = 0;
+			}
+			if(note < notes.size()) {
+				action.accept(event(note++));
+				return true;
+			}
+			measure++;
+			notes = null;
+		}
+		return false;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super FMEvent> action) {
+		for(; measure < fence; measure++) {
+			if(notes == null) {
+				notes = readMeasure(measure);
+				note = 0;
+			}
+			while(note < notes.size()) {
+				action.accept(event(note++));
+			}
+			notes = null;
+		}
+	}
+
+	/**
+	 * Splits off the first part of the remaining measures, at the segment boundary closest to
+	 * the middle of the remaining notes if the range spans several segments, or otherwise at
+	 * the measure boundary closest to it. A measure already being read is not split.
+	 */
+	@Override
+	public Spliterator<FMEvent> trySplit() {
+		int lo = notes == null ? measure : measure + 1;
+		int hi = fence;
+		if(hi - lo < 2) return null;
+		long middle = (table.noteOffsets[lo] + table.noteOffsets[hi]) / 2;
+		int mid = lo + 1;
+		if(table.measureSegment[lo] != table.measureSegment[hi - 1]) {
+			// segment boundaries in (lo, hi): measures starting a new pattern entry
+			int best = -1;
+			for(int m = lo + 1; m < hi; m++) {
+				if(table.measureSegment[m] != table.measureSegment[m - 1]
+						&& (best < 0 || Math.abs(table.noteOffsets[m] - middle) < Math.abs(table.noteOffsets[best] - middle))) {
+					best = m;
+				}
+			}
+			mid = best;
+		} else {
+			mid = closestMeasure(lo + 1, hi - 1, middle);
+		}
+		CompositionSpliterator prefix = new CompositionSpliterator(table, measure, mid);
+		prefix.notes = notes;
+		prefix.note = note;
+		measure = mid;
+		notes = null;
+		note = 0;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		if(measure >= fence) return 0;
+		return table.noteOffsets[fence] - table.noteOffsets[measure] - (notes == null ? 0 : note);
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | SIZED | SUBSIZED | NONNULL;
+	}
+
+	/**
+	 * Returns the notes of the given measure
+	 */
+	private NoteBuffer readMeasure(int m) {
+		FMCompositionSegment fmcs = table.segments[table.measureSegment[m]];
+		return fmcs.getMeasureNotes(table.measureInSegment[m]);
+	}
+
+	/**
+	 * Returns the event for the given note of the current measure
+	 */
+	private FMEvent event(int i) {
+		return new FMEvent(table.measureStarts[measure] + notes.getStart(i), notes.getDuration(i),
+				notes.getPitch(i), notes.getTiedToNext(i), table.measureSegment[measure]);
+	}
+
+	/**
+	 * Returns the measure in [from, to] whose note offset is closest to the given one
+	 */
+	private int closestMeasure(int from, int to, long target) {
+		int lo = from;
+		int hi = to;
+		while(lo < hi) {
+			int m = (lo + hi) >>> 1;
+			if(table.noteOffsets[m] < target) {
+				lo = m + 1;
+			} else {
+				hi = m;
+			}
+		}
+		if(lo > from && target - table.noteOffsets[lo - 1] < table.noteOffsets[lo] - target) {
+			return lo - 1;
+		}
+		return lo;
+	}
+}
@@ -1,5 +1,11 @@
 package framework.ds;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import jm.constants.Pitches;
 
 /**
@@ -7,6 +13,11 @@ import jm.constants.Pitches;
  * key signature representation. Has much more functionality
  * than KeySignature.
  * 
+ * Instances never change once constructed. The valueOf
+ * methods, which look keys up by name or tonic, and
+ * ofSharpsOrFlats return shared instances, so the same key
+ * is built once and can be compared by identity.
+ * 
  * @author Sam
  * 
  * @version 1.2
@@ -14,6 +25,56 @@ import jm.constants.Pitches;
  */
 public class DiatonicKeySignature extends KeySignature{
 	
+	/** Fewest sharps or flats (as a negative number) of a cached key **/
+	private static final int MIN_SHARPS_OR_FLATS = -7;
+	
+	/** Most sharps of a cached key **/
+	private static final int MAX_SHARPS_OR_FLATS = 7;
+	
+	/** 
+	 * Shared keys by number of sharps or flats (offset by 7)
+	 * and quality, all built when the class is loaded
+	**/
+	private static final DiatonicKeySignature[][] BY_SHARPS_OR_FLATS = new DiatonicKeySignature[MAX_SHARPS_OR_FLATS - MIN_SHARPS_OR_FLATS + 1][2];
+	
+	/** Shared keys by name, built when first requested **/
+	private static final Map<String, DiatonicKeySignature> BY_NAME = new ConcurrentHashMap<>();
+	
+	/** Tonic spellings accepted by DiatonicKeySignature(String) **/
+	private static final String[] TONIC_NAMES = {"C", "C#", "Db", "D", "D#", "Eb", "E", "E#", "Fb", "F", "F#",
+			"Gb", "G", "G#", "Ab", "A", "A#", "Bb", "B", "B#", "Cb"};
+	
+	/** Names of the keys which valueOf(String) shares, every tonic spelling in every mode **/
+	private static final Set<String> SHARED_NAMES = new HashSet<>();
+	
+	/** Spelling of each pitch class as the tonic of a major mode **/
+	private static final String[] MAJOR_TONIC_NAMES = {"C", "Db", "D", "Eb", "E", "F", "F#", "G", "Ab", "A", "Bb", "B"};
+	
+	/** Spelling of each pitch class as the tonic of a minor mode **/
+	private static final String[] MINOR_TONIC_NAMES = {"C", "C#", "D", "Eb", "E", "F", "F#", "G", "G#", "A", "Bb", "B"};
+	
+	/** Intervals of the major scale, which every mode is a rotation of **/
+	private static final int[] MAJOR_INTERVALS = {2, 2, 1, 2, 2, 2, 1};
+	
+	/** Name of the mode starting on each degree of the major scale **/
+	private static final String[] MODE_NAMES = {"Major", "Dorian", "Phrygian", "Lydian", "Mixolydian", "Minor", "Locrian"};
+	
+	static {
+		for (int sof = MIN_SHARPS_OR_FLATS; sof <= MAX_SHARPS_OR_FLATS; sof++) {
+			for (int quality = MAJOR; quality <= MINOR; quality++) {
+				BY_SHARPS_OR_FLATS[sof - MIN_SHARPS_OR_FLATS][quality] = new DiatonicKeySignature(sof, quality);
+			}
+		}
+		for (String tonic : TONIC_NAMES) {
+			for (String mode : MODE_NAMES) {
+				SHARED_NAMES.add(tonic + " " + mode);
+			}
+			for (String mode : Arrays.asList("Ionian", "Aeolian")) {
+				SHARED_NAMES.add(tonic + " " + mode);
+			}
+		}
+	}
+	
 	/** Distance in semitones between tonic and supertonic **/
 	private int firstInterval;
 	
@@ -379,6 +440,89 @@ public class DiatonicKeySignature extends KeySignature{
 		calculateScale(tonic);
 	}
 	
+	/**
+	 * Returns the shared key signature with the given name,
+	 * as accepted by DiatonicKeySignature(String), building
+	 * it the first time it is requested. Only a supported
+	 * tonic followed by a mode name is shared, so names read
+	 * from input cannot grow the cache without bound.
+	 * @param name: the name of the key signature, for example
+	 * 				"Ab Major" or "C Aeolian"
+	 * @return shared key signature, or a new one if the name
+	 * 		   is not that of a supported key
+	 */
+	public static DiatonicKeySignature valueOf(String name) {
+		DiatonicKeySignature res = BY_NAME.get(name);
+		if (res == null) {
+			if (!SHARED_NAMES.contains(name)) {
+				return new DiatonicKeySignature(name);
+			}
+			res = BY_NAME.computeIfAbsent(name, DiatonicKeySignature::new);
+		}
+		return res;
+	}
+	
+	/**
+	 * Returns the shared key signature with the given tonic
+	 * and mode. As with named keys, the scale starts in
+	 * octave 3 whatever the octave of the tonic given.
+	 * @param tonic: pitch of the tonic, in any octave
+	 * @param mode: "Major", "Minor", "Ionian", "Dorian",
+	 * 				"Phrygian", "Lydian", "Mixolydian",
+	 * 				"Aeolian" or "Locrian"
+	 * @return shared key signature
+	 */
+	public static DiatonicKeySignature valueOf(int tonic, String mode) {
+		int pitchClass = Math.floorMod(tonic, 12);
+		boolean minor = mode.equals("Minor") || mode.equals("Dorian") || mode.equals("Phrygian")
+				|| mode.equals("Aeolian") || mode.equals("Locrian");
+		String tonicName = minor ? MINOR_TONIC_NAMES[pitchClass] : MAJOR_TONIC_NAMES[pitchClass];
+		return valueOf(tonicName + " " + mode);
+	}
+	
+	/**
+	 * Returns the shared key signature with the given tonic
+	 * whose scale has the given intervals, as written in a
+	 * Composition's metrics. Intervals which are not those of
+	 * a diatonic mode give the major or minor key, minor if
+	 * the second interval is a half step.
+	 * @param tonic: pitch of the tonic, in any octave
+	 * @param intervals: semitones between the degrees of the
+	 * 				scale, the seventh interval being optional
+	 * @return shared key signature
+	 */
+	public static DiatonicKeySignature valueOf(int tonic, int[] intervals) {
+		if (intervals.length == 6 || intervals.length == 7) {
+			for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+				boolean matches = true;
+				for (int i = 0; i < intervals.length && matches; i++) {
+					matches = intervals[i] == MAJOR_INTERVALS[(mode + i) % MAJOR_INTERVALS.length];
+				}
+				if (matches) {
+					return valueOf(tonic, MODE_NAMES[mode]);
+				}
+			}
+		}
+		boolean minor = intervals.length > 1 && intervals[1] == 1;
+		return valueOf(tonic, minor ? "Minor" : "Major");
+	}
+	
+	/**
+	 * Returns the shared key signature with the given number
+	 * of sharps (+) or flats (-) and key quality, as built by
+	 * DiatonicKeySignature(int, int).
+	 * @param sof: number of sharps or flats in the key signature
+	 * @param quality: whether the key is major (0) or minor (1)
+	 * @return shared key signature, or a new one if the
+	 * 		   arguments are outside the supported range
+	 */
+	public static DiatonicKeySignature ofSharpsOrFlats(int sof, int quality) {
+		if (sof < MIN_SHARPS_OR_FLATS || sof > MAX_SHARPS_OR_FLATS || quality < MAJOR || quality > MINOR) {
+			return new DiatonicKeySignature(sof, quality);
+		}
+		return BY_SHARPS_OR_FLATS[sof - MIN_SHARPS_OR_FLATS][quality];
+	}
+	
 	/**
 	 * Returns the JMusic pitch of the tonic note for 
 	 * the key.
@@ -677,7 +821,7 @@ public class DiatonicKeySignature extends KeySignature{
 		int submediant = dominant + fifthInterval;
 		int leadingTone = submediant + sixthInterval;
 		int[] newScale = {tonic, supertonic, mediant, subdominant, dominant, submediant, leadingTone};
-		scale = newScale;
+		setScale(newScale);
 		/*System.out.println("calculateScale\n==========");
 		for(int i : scale) {
 			System.out.println(i);
@@ -1,12 +1,10 @@
 package framework.ds;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.SortedMap;
-import java.util.TreeMap;
 
 /**
  * Data structure that corresponds to an entire section of the pattern of a composition
@@ -28,6 +26,21 @@ public class FMCompositionSegment implements Iterable<FMMeasure> {
 	// measures
 	private List<FMMeasure> measures;
 	
+	// length of every measure in FMNote rhythm value units, fixed by the first measure added
+	private int measureLength;
+	
+	// rhythm of the segment, or null if a measure or a note has been added since it was built
+	private RhythmMap rhythm;
+	
+	// whether a measure holds MutableFMNotes, whose rhythm may change without notice
+	private boolean hasMutableNotes;
+	
+	// compositions this segment is registered with, told when it changes so they can drop what they cached
+	private List<FMComposition> compositions = new ArrayList<>(1);
+	
+	// whether the segment belongs to a frozen composition
+	private boolean readOnly;
+	
 	/**
 	 * Constructs a composition segment from a KeySignature
 	 * and a tempo.
@@ -43,7 +56,7 @@ public class FMCompositionSegment implements Iterable<FMMeasure> {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		measures = new LinkedList<>();
+		measures = new ArrayList<>();
 	}
 	
 	/**
@@ -58,8 +71,88 @@ public class FMCompositionSegment implements Iterable<FMMeasure> {
 	 * @return whether the measure is added
 	 */
 	public boolean addMeasure(FMMeasure newMeasure) {
-		// no elements yet, safe to add
+		checkWritable();
+		matchTimeSignature(newMeasure);
 		if (measures.size() == 0) {
+			measureLength = newMeasure.getMeasureLength();
+		}
+		measures.add(newMeasure);
+		newMeasure.addSegment(this);
+		hasMutableNotes |= newMeasure.hasMutableNotes();
+		rhythm = null;
+		changed(true);
+		return true;
+	}
+	
+	/**
+	 * Makes the segment and its measures read-only, as those of a frozen composition are.
+	 * Nothing is copied.
+	 */
+	void freeze() {
+		readOnly = true;
+		for(FMMeasure fmm : measures) {
+			fmm.freeze();
+		}
+	}
+	
+	/**
+	 * Throws if the segment belongs to a frozen composition
+	 * @throws UnsupportedOperationException if the segment is read-only
+	 */
+	void checkWritable() {
+		if(readOnly) {
+			throw new UnsupportedOperationException("A segment of a frozen composition cannot be changed");
+		}
+	}
+	
+	/**
+	 * Records that the segment is registered with the given composition, which is told
+	 * whenever the segment changes.
+	 * @param composition
+	 */
+	void addComposition(FMComposition composition) {
+		if(!compositions.contains(composition)) {
+			compositions.add(composition);
+		}
+	}
+	
+	/**
+	 * Records that the segment is no longer registered with the given composition.
+	 * @param composition
+	 */
+	void removeComposition(FMComposition composition) {
+		compositions.remove(composition);
+	}
+	
+	/**
+	 * Called by a measure of the segment when a note is added to it.
+	 * @param fmm: measure which changed
+	 */
+	void measureChanged(FMMeasure fmm) {
+		hasMutableNotes |= fmm.hasMutableNotes();
+		rhythm = null;
+		changed(false);
+	}
+	
+	/**
+	 * Tells the compositions the segment is registered with that it has changed.
+	 * @param durationChanged: whether a measure was added, rather than only a note
+	 */
+	void changed(boolean durationChanged) {
+		for(FMComposition composition : compositions) {
+			composition.segmentChanged(durationChanged);
+		}
+	}
+	
+	/**
+	 * Takes the time signature of the segment from the first measure added, and checks that
+	 * later measures share it.
+	 * @param newMeasure measure about to be added
+	 * @throws IllegalArgumentException if the measure's time signature differs from the segment's
+	 */
+	protected void matchTimeSignature(FMMeasure newMeasure) {
+		// no elements yet, safe to add
+		if (getNumMeasures() == 0) {
 			int timeSigNum = newMeasure.getTimeSignatureNumerator();
 			int timeSigDenom = newMeasure.getTimeSignatureDenominator();
 			try {
@@ -68,15 +161,10 @@ public class FMCompositionSegment implements Iterable<FMMeasure> {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
-			return measures.add(newMeasure);
-		} else {
-			if(timeSig.getBeatsPerMeasure() != newMeasure.getTimeSignatureNumerator() ||
-					timeSig.getNoteGetsBeat() != newMeasure.getTimeSignatureDenominator()) {
-				throw new IllegalArgumentException("Time signature must be consistent"
-						+ "throughout the composition segment.");
-			} else {
-				return measures.add(newMeasure);
-			}
+		} else if(timeSig.getBeatsPerMeasure() != newMeasure.getTimeSignatureNumerator() ||
+				timeSig.getNoteGetsBeat() != newMeasure.getTimeSignatureDenominator()) {
+			throw new IllegalArgumentException("Time signature must be consistent"
+					+ "throughout the composition segment.");
 		}
 	}
 	
@@ -116,7 +204,30 @@ public class FMCompositionSegment implements Iterable<FMMeasure> {
 	 */
 	public int getDuration() {
 		if(measures.isEmpty()) return -1;
-		return measures.get(0).getMeasureLength() * measures.size();
+		return measureLength * measures.size();
+	}
+	
+	/**
+	 * Returns the measure containing the given position, in FMNote rhythm value units.
+	 * All measures of a segment share a time signature, so this is a division rather
+	 * than a walk over the measures.
+	 * @param position
+	 * @return measure, or null if the position is outside the segment
+	 */
+	public FMMeasure getMeasureAtPosition(int position) {
+		if(measures.isEmpty() || position < 0) return null;
+		int whichMeasure = position / measureLength;
+		if(whichMeasure >= measures.size()) return null;
+		return measures.get(whichMeasure);
+	}
+	
+	/**
+	 * Returns the start of the given measure within the segment, in FMNote rhythm value units.
+	 * @param measureIndex
+	 * @return start position
+	 */
+	public int getMeasureStartPosition(int measureIndex) {
+		return measureIndex * measureLength;
 	}
 	
 	/**
@@ -135,40 +246,81 @@ public class FMCompositionSegment implements Iterable<FMMeasure> {
 		return measures.size();
 	}
 	
+	/**
+	 * Returns the number of notes in the given measure.
+	 * @param measureIndex
+	 * @return number of notes
+	 */
+	int getMeasureNoteCount(int measureIndex) {
+		return measures.get(measureIndex).getNoteCount();
+	}
+	
+	/**
+	 * Returns the notes of the given measure, with start positions relative to the measure.
+	 * @param measureIndex
+	 * @return notes
+	 */
+	NoteBuffer getMeasureNotes(int measureIndex) {
+		return measures.get(measureIndex).getNoteBuffer();
+	}
+	
 	/**
 	 * Returns a map of the starting position and duration of all notes in the composition segment,
 	 * in FMNote rhythm value units.
 	 * @return map of rhythm
 	 */
 	public SortedMap<Integer, Integer> getRhythm() {
-		SortedMap<Integer, Integer> res = new TreeMap<>();
-		int currentMeasureStartPosition = 0;
-		for(FMMeasure fmm : measures) {
-			SortedMap<Integer, Integer> measureRhythm = fmm.getRhythm();
-			for(Integer startInMeasure : measureRhythm.keySet()) {
-				res.put(startInMeasure + currentMeasureStartPosition,
-						measureRhythm.get(startInMeasure));
+		return getRhythmMap().toSortedMap();
+	}
+	
+	/**
+	 * Returns the starting position and duration of all notes in the composition segment,
+	 * in FMNote rhythm value units, without boxing. The map is cached until a measure or
+	 * a note is added.
+	 * @return rhythm map
+	 */
+	public RhythmMap getRhythmMap() {
+		RhythmMap res = rhythm;
+		if(res == null || hasMutableNotes) {
+			int size = 0;
+			for(FMMeasure fmm : measures) {
+				size += fmm.getRhythmMap().size();
+			}
+			RhythmMap.Builder builder = new RhythmMap.Builder(size);
+			int currentMeasureStartPosition = 0;
+			for(FMMeasure fmm : measures) {
+				builder.putAll(fmm.getRhythmMap(), currentMeasureStartPosition);
+				currentMeasureStartPosition += fmm.getMeasureLength();
 			}
-			currentMeasureStartPosition += fmm.getMeasureLength();
+			res = builder.build();
+			rhythm = res;
 		}
 		return res;
 	}
 	
+	/**
+	 * Returns whether the segment's rhythm may change without notice because it holds
+	 * MutableFMNotes.
+	 * @return whether the segment holds MutableFMNotes
+	 */
+	boolean hasMutableNotes() {
+		return hasMutableNotes;
+	}
+	
 	/**
 	 * Returns the chord at the position provided in FMNote rhythm value units.
 	 * @param position
 	 * @return collection of pitches
 	 */
-	public Collection<Integer> getPitchesAtPosition(int position) {
+	public PitchSet getPitchesAtPosition(int position) {
 		
 		// if no measures or negative time, no pitches
-		if(measures.isEmpty() || position < 0) return Collections.emptySet();
+		if(measures.isEmpty() || position < 0) return PitchSet.EMPTY;
 		
-		int measureLength = measures.get(0).getMeasureLength();
 		int whichMeasure = position / measureLength;
 		
 		//if off tail end, no pitches
-		if(whichMeasure >= measures.size()) return Collections.emptySet();
+		if(whichMeasure >= measures.size()) return PitchSet.EMPTY;
 		
 		int positionInMeasure = position % measureLength;
 		return measures.get(whichMeasure).getPitchesAtPosition(positionInMeasure);
@@ -181,17 +333,8 @@ public class FMCompositionSegment implements Iterable<FMMeasure> {
 	 * @return duration
 	 */
 	public int getRemainingMeasureDurationAtPosition(int position) {
-		List<FMMeasure> measures = getMeasures();
-		int currentMeasureStartPosition = 0;
-		for(FMMeasure meas: measures) {
-			if (position >= currentMeasureStartPosition &&
-					position < currentMeasureStartPosition + meas.getMeasureLength()) {
-				int posInMeasure = position - currentMeasureStartPosition;
-				return meas.getMeasureLength() - posInMeasure;
-			}
-			currentMeasureStartPosition += meas.getMeasureLength();
-		}
-		return -1;
+		if(measures.isEmpty() || position < 0 || position >= getDuration()) return -1;
+		return measureLength - position % measureLength;
 	}
 
 	@Override
@@ -1,10 +1,9 @@
 package framework.ds;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.SortedMap;
-import java.util.TreeMap;
 
 import framework.ds.FMMeasure.PositionedFMNote;
 
@@ -24,8 +23,23 @@ public class FMMeasure {
 	// length of a measure in FMNote rhythm value units
 	protected int measureLength;
 	
-	// collection of notes in the measure
-	protected Collection<PositionedFMNote> notes;
+	// notes in the measure, sorted by start position; notes sharing a start stay in the order they were added
+	protected List<PositionedFMNote> notes;
+	
+	// whether a MutableFMNote was added, whose pitch or duration may have changed since, so nothing derived from the notes can be cached
+	private boolean hasMutableNotes;
+	
+	// segments holding this measure, told when a note is added so they can drop what they cached
+	private List<FMCompositionSegment> segments;
+	
+	// rhythm of the measure, or null if a note has been added since it was built
+	private RhythmMap rhythm;
+	
+	// pitches sounding over each span of the measure, or null if a note has been added since they were built
+	private Spans spans;
+	
+	// whether the measure belongs to a frozen composition
+	private boolean readOnly;
 	
 	/**
 	 * Constructor
@@ -38,7 +52,7 @@ public class FMMeasure {
 		
 		measureLength = timeSigNum * 384/timeSigDenom;
 		
-		notes = new LinkedList<PositionedFMNote>();
+		notes = new ArrayList<PositionedFMNote>();
 	}
 	
 	/**
@@ -68,21 +82,36 @@ public class FMMeasure {
 	public int getMeasureLength() { return measureLength; }
 	
 	/**
-	 * Returns the pitches of the chord being played at the position requested.
+	 * Returns the pitches of the chord being played at the position requested. The pitches
+	 * sounding between every two successive note starts or ends are worked out once, when
+	 * the first position is asked for after a note is added, so a lookup is a binary search
+	 * over those spans and returns a set built with them, allocating nothing. A measure
+	 * holding MutableFMNotes cannot cache them, and scans every note starting at or before
+	 * the position into a new set instead.
 	 * @param position in FMNote rhythm value units
 	 * @return pitches being played at the chosen position
 	 */
-	public Collection<Integer> getPitchesAtPosition(int position) {
+	public PitchSet getPitchesAtPosition(int position) {
 		if(position < 0 || position > measureLength) return null;
 		
-		Collection<Integer> res = new HashSet<>();
-		for(PositionedFMNote n : notes) {
-			if(n.startPosition <= position && 
-					n.startPosition + n.note.getDuration() > position) {
-				res.add(n.note.pitch);
+		if(hasMutableNotes) {
+			long low = 0;
+			long high = 0;
+			for(int i = firstStartAfter(position) - 1; i >= 0; i--) {
+				PositionedFMNote n = notes.get(i);
+				if(n.startPosition + n.note.getDuration() > position) {
+					low |= PitchSet.lowBit(n.note.pitch);
+					high |= PitchSet.highBit(n.note.pitch);
+				}
 			}
+			return PitchSet.fromBits(low, high);
 		}
-		return res;
+		Spans res = spans;
+		if(res == null) {
+			res = new Spans(notes);
+			spans = res;
+		}
+		return res.getPitchesAtPosition(position);
 	}
 	
 	/**
@@ -91,12 +120,78 @@ public class FMMeasure {
 	 * @return position and duration of notes
 	 */
 	public SortedMap<Integer, Integer> getRhythm() {
-		SortedMap<Integer, Integer> res = new TreeMap<>();
-		for(PositionedFMNote n : notes) {
-			res.put(n.startPosition, n.note.getDuration());
+		return getRhythmMap().toSortedMap();
+	}
+	
+	/**
+	 * Returns the start time and duration of all notes in the measure, in FMNote rhythm value
+	 * units, without boxing. Where notes share a start time, the one added last gives the
+	 * duration. The map is cached until a note is added.
+	 * @return position and duration of notes
+	 */
+	public RhythmMap getRhythmMap() {
+		RhythmMap res = rhythm;
+		if(res == null || hasMutableNotes) {
+			RhythmMap.Builder builder = new RhythmMap.Builder(notes.size());
+			for(PositionedFMNote n : notes) {
+				builder.put(n.startPosition, n.note.getDuration());
+			}
+			res = builder.build();
+			rhythm = res;
 		}
 		return res;
 	}
+	
+	/**
+	 * Returns the notes of the measure in primitive columns, sorted by start position, with
+	 * start positions relative to the start of the measure.
+	 * @return notes of the measure
+	 */
+	public NoteBuffer getNoteBuffer() {
+		NoteBuffer.Builder builder = new NoteBuffer.Builder(notes.size());
+		for(PositionedFMNote n : notes) {
+			builder.add(n.note, n.startPosition);
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * Makes the measure read-only, as the measures of a frozen composition are. The notes
+	 * are not copied, so a MutableFMNote may still be changed by whoever holds it.
+	 */
+	void freeze() {
+		readOnly = true;
+	}
+	
+	/**
+	 * Records that the measure belongs to the given segment, which is told whenever a note
+	 * is added.
+	 * @param segment
+	 */
+	void addSegment(FMCompositionSegment segment) {
+		if(segments == null) {
+			segments = new ArrayList<>(1);
+		}
+		if(!segments.contains(segment)) {
+			segments.add(segment);
+		}
+	}
+	
+	/**
+	 * Returns the number of notes in the measure.
+	 * @return number of notes
+	 */
+	int getNoteCount() {
+		return notes.size();
+	}
+	
+	/**
+	 * Returns whether the measure holds MutableFMNotes, whose rhythm may change without notice.
+	 * @return whether the measure holds MutableFMNotes
+	 */
+	boolean hasMutableNotes() {
+		return hasMutableNotes;
+	}
 		
 	/**
 	 * A note that has been positioned within a measure. For use encapsulating notes to add to
@@ -112,6 +207,95 @@ public class FMMeasure {
 		}
 	}
 	
+	/**
+	 * The pitches sounding over each span of a measure between two successive note starts or
+	 * ends, over which they do not change. There are at most twice as many spans as notes.
+	 */
+	private static final class Spans {
+		
+		// position at which each span starts, increasing; no pitch sounds before the first
+		private final int[] starts;
+		
+		// pitches sounding over each span; successive spans with the same pitches share a set
+		private final PitchSet[] pitches;
+		
+		/**
+		 * Sweeps over the starts and ends of the given notes, sorted by start, counting how
+		 * many notes of each pitch are sounding
+		 */
+		Spans(List<PositionedFMNote> notes) {
+			// end position and index of every note that sounds, sorted by end
+			long[] ends = new long[notes.size()];
+			int numEnds = 0;
+			for(int i = 0; i < notes.size(); i++) {
+				PositionedFMNote n = notes.get(i);
+				if(sounds(n)) {
+					ends[numEnds++] = (long)(n.startPosition + n.note.getDuration()) << 32 | i;
+				}
+			}
+			Arrays.sort(ends, 0, numEnds);
+			
+			int[] resStarts = new int[2 * numEnds];
+			PitchSet[] resPitches = new PitchSet[resStarts.length];
+			int size = 0;
+			int[] counts = new int[PitchSet.MAX_PITCH + 1];
+			long curLow = 0;
+			long curHigh = 0;
+			int nextStart = 0;
+			int nextEnd = 0;
+			while(nextEnd < numEnds) {
+				while(nextStart < notes.size() && !sounds(notes.get(nextStart))) nextStart++;
+				int endPosition = (int)(ends[nextEnd] >>> 32);
+				int position = nextStart < notes.size() ? Math.min(notes.get(nextStart).startPosition, endPosition) : endPosition;
+				// notes ending here have stopped sounding before those starting here begin
+				for(; nextEnd < numEnds && (int)(ends[nextEnd] >>> 32) == position; nextEnd++) {
+					int pitch = notes.get((int)ends[nextEnd]).note.pitch;
+					if(--counts[pitch] == 0) {
+						curLow &= ~PitchSet.lowBit(pitch);
+						curHigh &= ~PitchSet.highBit(pitch);
+					}
+				}
+				for(; nextStart < notes.size() && notes.get(nextStart).startPosition == position; nextStart++) {
+					PositionedFMNote n = notes.get(nextStart);
+					if(sounds(n) && counts[n.note.pitch]++ == 0) {
+						curLow |= PitchSet.lowBit(n.note.pitch);
+						curHigh |= PitchSet.highBit(n.note.pitch);
+					}
+				}
+				PitchSet previous = size == 0 ? PitchSet.EMPTY : resPitches[size - 1];
+				resStarts[size] = position;
+				resPitches[size] = previous.hasBits(curLow, curHigh) ? previous : PitchSet.fromBits(curLow, curHigh);
+				size++;
+			}
+			starts = Arrays.copyOf(resStarts, size);
+			pitches = Arrays.copyOf(resPitches, size);
+		}
+		
+		/**
+		 * Returns whether a note sounds at all: it lasts some time and has a pitch a PitchSet holds
+		 */
+		private static boolean sounds(PositionedFMNote n) {
+			return n.note.getDuration() > 0 && n.note.pitch >= 0 && n.note.pitch <= PitchSet.MAX_PITCH;
+		}
+		
+		/**
+		 * Returns the pitches sounding at the given position
+		 */
+		PitchSet getPitchesAtPosition(int position) {
+			int lo = 0;
+			int hi = starts.length;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(starts[mid] <= position) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo == 0 ? PitchSet.EMPTY : pitches[lo - 1];
+		}
+	}
+	
 	/**
 	 * Adds a note to the measure at the given start position.
 	 * @param note
@@ -119,8 +303,12 @@ public class FMMeasure {
 	 * @return whether the note is added
 	 */
 	public boolean addNote(FMNote note, int startPosition) {
-		for(PositionedFMNote n : notes) {
-			if(n.note.equals(note) && n.startPosition == startPosition) {
+		if(readOnly) {
+			throw new UnsupportedOperationException("A measure of a frozen composition cannot be changed");
+		}
+		int insertAt = firstStartAfter(startPosition);
+		for(int i = insertAt - 1; i >= 0 && notes.get(i).startPosition == startPosition; i--) {
+			if(notes.get(i).note.equals(note)) {
 				// Cannot place the same note at the same position twice
 				return false;
 			}
@@ -136,7 +324,35 @@ public class FMMeasure {
 			return false;
 		}
 		
-		return notes.add(new PositionedFMNote(note, startPosition));
-		
+		notes.add(insertAt, new PositionedFMNote(note, startPosition));
+		rhythm = null;
+		spans = null;
+		if(note instanceof MutableFMNote) {
+			hasMutableNotes = true;
+		}
+		if(segments != null) {
+			for(FMCompositionSegment segment : segments) {
+				segment.measureChanged(this);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the index of the first note starting after the given position,
+	 * or the number of notes if none does
+	 */
+	private int firstStartAfter(int position) {
+		int lo = 0;
+		int hi = notes.size();
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(notes.get(mid).startPosition <= position) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
 	}
 }
@@ -31,6 +31,7 @@ public class FMNote {
 		}
 		pitch = ptch;
 		duration = dur;
+		tiedToNext = tied;
 	}
 	
 	/**
@@ -0,0 +1,291 @@
+package framework.ds;
+
+import java.util.Arrays;
+
+import jm.music.data.Note;
+import jm.music.data.Part;
+import jm.music.data.Phrase;
+
+/**
+ * Immutable part generated by a Packet, held in FuseMuse's own units instead of jMusic objects.
+ * A part is a run of events, each a note, a chord or a rest, which follow each other without
+ * gaps from the start of the part. Every event has a start position and a duration in FMNote
+ * rhythm value units, and any number of pitches: one for a note, more for a chord and none
+ * for a rest.
+ *
+ * The events are held in primitive arrays: one int each for the start and duration of every
+ * event, and the pitches of all events in one array with the index of each event's first
+ * pitch, so a part takes a few ints per event whatever its length. Packets which only read
+ * prior parts can use it directly; toJMusicPart builds the jMusic Part for those which work
+ * with jMusic.
+ *
+ * See FMNote for documentation on rhythm values.
+ */
+public final class FMPart {
+
+	// name of the part, or null if it has none
+	private final String name;
+
+	// start position of each event, followed by the end of the part
+	private final int[] starts;
+
+	// index in pitches of the first pitch of each event, followed by the number of pitches
+	private final int[] pitchStarts;
+
+	// pitches of all events, in order
+	private final int[] pitches;
+
+	private FMPart(String name, int[] starts, int[] pitchStarts, int[] pitches) {
+		this.name = name;
+		this.starts = starts;
+		this.pitchStarts = pitchStarts;
+		this.pitches = pitches;
+	}
+
+	/**
+	 * Returns the name of the part
+	 * @return name, or null
+	 */
+	public String getName() { return name; }
+
+	/**
+	 * Returns the number of events
+	 * @return size
+	 */
+	public int size() { return starts.length - 1; }
+
+	/**
+	 * Returns the length of the part, which is where its last event ends
+	 * @return duration
+	 */
+	public int getDuration() { return starts[starts.length - 1]; }
+
+	/**
+	 * Returns the start position of the given event
+	 * @param event: index of the event
+	 * @return start position
+	 */
+	public int getStart(int event) {
+		checkIndex(event);
+		return starts[event];
+	}
+
+	/**
+	 * Returns the duration of the given event
+	 * @param event: index of the event
+	 * @return duration
+	 */
+	public int getDuration(int event) {
+		checkIndex(event);
+		return starts[event + 1] - starts[event];
+	}
+
+	/**
+	 * Returns the position at which the given event ends
+	 * @param event: index of the event
+	 * @return end position
+	 */
+	public int getEnd(int event) {
+		checkIndex(event);
+		return starts[event + 1];
+	}
+
+	/**
+	 * Returns the number of pitches of the given event: 1 for a note, more for a chord and 0 for a rest
+	 * @param event: index of the event
+	 * @return number of pitches
+	 */
+	public int getPitchCount(int event) {
+		checkIndex(event);
+		return pitchStarts[event + 1] - pitchStarts[event];
+	}
+
+	/**
+	 * Returns whether the given event is a rest
+	 * @param event: index of the event
+	 * @return rest
+	 */
+	public boolean isRest(int event) {
+		return getPitchCount(event) == 0;
+	}
+
+	/**
+	 * Returns a pitch of the given event, in the order the pitches were added
+	 * @param event: index of the event
+	 * @param n: index of the pitch within the event
+	 * @return pitch
+	 */
+	public int getPitch(int event, int n) {
+		if(n < 0 || n >= getPitchCount(event)) {
+			throw new IndexOutOfBoundsException("Pitch " + n + " of an event with " + getPitchCount(event));
+		}
+		return pitches[pitchStarts[event] + n];
+	}
+
+	/**
+	 * Returns the pitches of the given event
+	 * @param event: index of the event
+	 * @return pitches, empty for a rest
+	 */
+	public PitchSet getPitches(int event) {
+		checkIndex(event);
+		long low = 0;
+		long high = 0;
+		for(int i = pitchStarts[event]; i < pitchStarts[event + 1]; i++) {
+			low |= PitchSet.lowBit(pitches[i]);
+			high |= PitchSet.highBit(pitches[i]);
+		}
+		return PitchSet.fromBits(low, high);
+	}
+
+	/**
+	 * Returns the index of the event sounding at the given position
+	 * @param position
+	 * @return index of the event, or -1 if the position is outside the part
+	 */
+	public int getEventAtPosition(int position) {
+		if(position < 0 || position >= getDuration()) return -1;
+		// last event starting at or before the position; zero-length events never sound
+		int lo = 0;
+		int hi = size();
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(starts[mid] <= position) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo - 1;
+	}
+
+	/**
+	 * Returns the pitches sounding at the given position
+	 * @param position
+	 * @return pitches, empty during a rest or outside the part
+	 */
+	public PitchSet getPitchesAtPosition(int position) {
+		int event = getEventAtPosition(position);
+		return event < 0 ? PitchSet.EMPTY : getPitches(event);
+	}
+
+	/**
+	 * Builds a jMusic Part holding the events in one Phrase. jMusic has no use for chords
+	 * within a phrase, so a chord gives its first pitch only, and a rest gives pitch 0, as the
+	 * Packets have always been handed. The Part is titled with the part's name, if it has one.
+	 * A new Part is built on every call.
+	 * @return part
+	 */
+	public Part toJMusicPart() {
+		Part p = new Part();
+		if(name != null) {
+			p.setTitle(name);
+		}
+		if(size() == 0) {
+			return p;
+		}
+		Note[] notes = new Note[size()];
+		for(int i = 0; i < notes.length; i++) {
+			int pitch = pitchStarts[i + 1] > pitchStarts[i] ? pitches[pitchStarts[i]] : 0;
+			notes[i] = new Note(pitch, FMComposition.getJMRhythmValue(starts[i + 1] - starts[i]));
+		}
+		p.add(new Phrase(notes));
+		return p;
+	}
+
+	@Override
+	public String toString() {
+		return "FMPart " + (name == null ? "" : name + " ") + "(" + size() + " events, duration " + getDuration() + ")";
+	}
+
+	/**
+	 * Throws if the given event index is out of range
+	 */
+	private void checkIndex(int event) {
+		if(event < 0 || event >= size()) {
+			throw new IndexOutOfBoundsException("Event " + event + " of " + size());
+		}
+	}
+
+	/**
+	 * Collects the events of a part in order. An event is read by adding its pitches one at a
+	 * time and then ending it with its duration, so decoders need not gather the pitches first.
+	 */
+	public static final class Builder {
+
+		private final String name;
+		private int[] starts;
+		private int[] pitchStarts;
+		private int[] pitches;
+		private int size;
+		private int pitchCount;
+
+		/**
+		 * Constructs a builder
+		 * @param name: name of the part, or null
+		 * @param expectedSize: number of events expected, used to size the arrays
+		 */
+		public Builder(String name, int expectedSize) {
+			this.name = name;
+			starts = new int[Math.max(expectedSize, 4) + 1];
+			pitchStarts = new int[starts.length];
+			pitches = new int[starts.length];
+		}
+
+		/**
+		 * Adds a pitch to the event being read
+		 * @param pitch
+		 * @return this builder
+		 */
+		public Builder addPitch(int pitch) {
+			if(pitchCount == pitches.length) {
+				pitches = Arrays.copyOf(pitches, pitchCount * 2);
+			}
+			pitches[pitchCount++] = pitch;
+			return this;
+		}
+
+		/**
+		 * Ends the event being read, which holds every pitch added since the previous event
+		 * ended and starts where it ended. An event without pitches is a rest.
+		 * @param duration
+		 * @return this builder
+		 * @throws IllegalArgumentException if the duration is negative
+		 */
+		public Builder endEvent(int duration) {
+			if(duration < 0) {
+				throw new IllegalArgumentException("Event duration " + duration + " is negative");
+			}
+			if(size + 1 == starts.length) {
+				starts = Arrays.copyOf(starts, starts.length * 2);
+				pitchStarts = Arrays.copyOf(pitchStarts, starts.length);
+			}
+			starts[size + 1] = starts[size] + duration;
+			size++;
+			pitchStarts[size] = pitchCount;
+			return this;
+		}
+
+		/**
+		 * Adds an event with the given pitches: a note, a chord or, without pitches, a rest
+		 * @param duration
+		 * @param eventPitches
+		 * @return this builder
+		 */
+		public Builder addEvent(int duration, int... eventPitches) {
+			for(int pitch : eventPitches) {
+				addPitch(pitch);
+			}
+			return endEvent(duration);
+		}
+
+		/**
+		 * Returns the part built so far. Pitches added since the last event ended are left out.
+		 * @return part
+		 */
+		public FMPart build() {
+			return new FMPart(name, Arrays.copyOf(starts, size + 1), Arrays.copyOf(pitchStarts, size + 1),
+					Arrays.copyOf(pitches, pitchStarts[size]));
+		}
+	}
+}
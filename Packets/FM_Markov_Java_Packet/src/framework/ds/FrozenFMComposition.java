@@ -0,0 +1,249 @@
+package framework.ds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import jm.music.data.Part;
+import jm.music.data.Score;
+
+/**
+ * Read-only snapshot of an FMComposition, returned by FMComposition.freeze. The pattern
+ * is held as indexes into an array of its distinct segments, and every measure of the
+ * composition is held in one array in playing order with its start position, so queries
+ * need neither name lookups nor walks over the pattern.
+ *
+ * The snapshot shares the pattern's segments and measures with the composition it was
+ * taken from, and makes them read-only in place, so taking it costs one pass over the
+ * measures and no copies of the notes. Methods which would change the composition, or
+ * add measures or notes to its segments, throw UnsupportedOperationException, and the
+ * pattern is copied, so nothing can change what the snapshot holds, apart from
+ * MutableFMNotes changed by whoever holds them. The score, parts and metrics timeline
+ * are shared with the composition the snapshot was taken from.
+ *
+ * The snapshot holds no score, segment dictionary or parts of its own.
+ */
+public class FrozenFMComposition extends FMComposition {
+
+	// composition the snapshot was taken from, which owns the score
+	private final FMComposition source;
+
+	// distinct segments of the pattern, in order of first appearance
+	private final FMCompositionSegment[] segmentTable;
+
+	// index into segmentTable of each pattern entry
+	private final int[] patternIndex;
+
+	// every measure of the composition, in playing order
+	private final FMMeasure[] measures;
+
+	// start of each measure in FMNote rhythm value units, followed by the end of the composition
+	private final int[] measureStarts;
+
+	// pattern entry each measure belongs to
+	private final int[] measureSegment;
+
+	// names of the pattern entries
+	private final List<String> pattern;
+
+	// whether a measure holds MutableFMNotes, whose rhythm may change without notice
+	private final boolean hasMutableNotes;
+
+	// rhythm of the composition, or null if it has not been built
+	private RhythmMap rhythm;
+
+	/**
+	 * Takes a snapshot of the given composition
+	 * @param composition
+	 */
+	FrozenFMComposition(FMComposition composition) {
+		super(true);
+		source = composition;
+		pattern = Collections.unmodifiableList(new ArrayList<>(composition.getPattern()));
+		List<FMCompositionSegment> segments = composition.getCompositionSegments();
+
+		Map<FMCompositionSegment, Integer> tableIndex = new HashMap<>();
+		List<FMCompositionSegment> table = new ArrayList<>();
+		patternIndex = new int[segments.size()];
+		int measureCount = 0;
+		for(int i = 0; i < segments.size(); i++) {
+			FMCompositionSegment fmcs = segments.get(i);
+			Integer index = tableIndex.get(fmcs);
+			if(index == null) {
+				index = table.size();
+				tableIndex.put(fmcs, index);
+				fmcs.freeze();
+				table.add(fmcs);
+			}
+			patternIndex[i] = index;
+			measureCount += fmcs.getNumMeasures();
+		}
+		segmentTable = table.toArray(new FMCompositionSegment[table.size()]);
+
+		measures = new FMMeasure[measureCount];
+		measureStarts = new int[measureCount + 1];
+		measureSegment = new int[measureCount];
+		int m = 0;
+		boolean mutable = false;
+		for(int i = 0; i < patternIndex.length; i++) {
+			for(FMMeasure fmm : segmentTable[patternIndex[i]].getMeasures()) {
+				// an off-heap segment rebuilds its measures when asked, so they are not frozen with it
+				fmm.freeze();
+				mutable |= fmm.hasMutableNotes();
+				measures[m] = fmm;
+				measureSegment[m] = i;
+				measureStarts[m + 1] = measureStarts[m] + fmm.getMeasureLength();
+				m++;
+			}
+		}
+		hasMutableNotes = mutable;
+	}
+
+	/**
+	 * Returns the score of the composition the snapshot was taken from
+	 * @return score
+	 */
+	@Override
+	public Score getScore() { return source.getScore(); }
+
+	/**
+	 * Returns this snapshot, which is already frozen
+	 * @return this
+	 */
+	@Override
+	public FMComposition freeze() { return this; }
+
+	@Override
+	public void addPendingPart(Supplier<Part> part) {
+		throw new UnsupportedOperationException("A frozen composition cannot be changed");
+	}
+
+	/**
+	 * Returns the parts of the composition the snapshot was taken from
+	 * @return read-only list of parts
+	 */
+	@Override
+	public List<FMPart> getParts() { return source.getParts(); }
+
+	@Override
+	public void addPart(FMPart part) {
+		throw new UnsupportedOperationException("A frozen composition cannot be changed");
+	}
+
+	/**
+	 * Returns the metrics timeline of the composition the snapshot was taken from
+	 * @return timeline
+	 */
+	@Override
+	public MetricsTimeline getMetricsTimeline() { return source.getMetricsTimeline(); }
+
+	@Override
+	public void setMetricsTimeline(MetricsTimeline metrics) {
+		throw new UnsupportedOperationException("A frozen composition cannot be changed");
+	}
+
+	@Override
+	public void addCompositionSegment(String name) {
+		throw new UnsupportedOperationException("A frozen composition cannot be changed");
+	}
+
+	@Override
+	public void addCompositionSegments(List<String> names) {
+		throw new UnsupportedOperationException("A frozen composition cannot be changed");
+	}
+
+	@Override
+	public void registerCompositionSegment(String name, FMCompositionSegment segment) {
+		throw new UnsupportedOperationException("A frozen composition cannot be changed");
+	}
+
+	@Override
+	public List<String> getPattern() {
+		return pattern;
+	}
+
+	@Override
+	public List<FMCompositionSegment> getCompositionSegments() {
+		List<FMCompositionSegment> res = new ArrayList<>(patternIndex.length);
+		for(int index : patternIndex) {
+			res.add(segmentTable[index]);
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the rhythm of the composition, built the first time it is requested. The
+	 * snapshot's measures cannot change, so it is never rebuilt, unless they hold
+	 * MutableFMNotes, in which case it is built on every request.
+	 * @return rhythm map
+	 */
+	@Override
+	public RhythmMap getRhythmMap() {
+		RhythmMap res = rhythm;
+		if(res == null || hasMutableNotes) {
+			int size = 0;
+			for(FMMeasure fmm : measures) {
+				size += fmm.getRhythmMap().size();
+			}
+			RhythmMap.Builder builder = new RhythmMap.Builder(size);
+			for(int m = 0; m < measures.length; m++) {
+				builder.putAll(measures[m].getRhythmMap(), measureStarts[m]);
+			}
+			res = builder.build();
+			rhythm = res;
+		}
+		return res;
+	}
+
+	@Override
+	public PitchSet getPitchesAtPosition(int position) {
+		int m = measureAt(position);
+		if(m < 0) return PitchSet.EMPTY;
+		return measures[m].getPitchesAtPosition(position - measureStarts[m]);
+	}
+
+	@Override
+	public int getRemainingMeasureDurationAtPosition(int position) {
+		int m = measureAt(position);
+		if(m < 0) return -1;
+		return measureStarts[m + 1] - position;
+	}
+
+	@Override
+	public FMCompositionSegment getCompositionSegmentAtPosition(int position) {
+		int m = measureAt(position);
+		return m < 0 ? null : segmentTable[patternIndex[measureSegment[m]]];
+	}
+
+	/**
+	 * Returns an iterator over every measure of the composition in playing order
+	 */
+	@Override
+	public Iterator<FMMeasure> iterator() {
+		return Collections.unmodifiableList(Arrays.asList(measures)).iterator();
+	}
+
+	/**
+	 * Returns the index of the measure containing the given position, or -1
+	 * if the position is outside the composition
+	 */
+	private int measureAt(int position) {
+		if(position < 0 || position >= measureStarts[measures.length]) return -1;
+		int lo = 0;
+		int hi = measures.length - 1;
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(measureStarts[mid] <= position) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+}
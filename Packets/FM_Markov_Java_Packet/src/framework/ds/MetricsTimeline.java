@@ -0,0 +1,307 @@
+package framework.ds;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable list of a composition's metrics entries: the tempo, key and time signature in
+ * force from a position onwards. The entries are held sorted by position in primitive arrays,
+ * so the metrics at any position are found by a binary search. The first entry is in force
+ * from the start of the composition, whatever its position.
+ *
+ * Positions are in FMNote rhythm value units. Tempos are in beats per minute, the beat being
+ * a quarter note as jMusic plays it; the time in seconds at the start of every entry is
+ * worked out when the timeline is built, so converting a position to seconds costs one search.
+ */
+public final class MetricsTimeline {
+
+	/** Timeline without any entries */
+	public static final MetricsTimeline EMPTY = new MetricsTimeline(new int[0], new int[0], new int[0], new int[0], new KeySignature[0]);
+
+	// position of each entry, increasing
+	private final int[] positions;
+
+	// beats per measure of each entry
+	private final int[] numerators;
+
+	// note that gets the beat in each entry
+	private final int[] denominators;
+
+	// tempo of each entry in beats per minute
+	private final int[] tempos;
+
+	// key of each entry
+	private final KeySignature[] keys;
+
+	// time in seconds at which each entry comes into force
+	private final double[] seconds;
+
+	private MetricsTimeline(int[] positions, int[] numerators, int[] denominators, int[] tempos, KeySignature[] keys) {
+		this.positions = positions;
+		this.numerators = numerators;
+		this.denominators = denominators;
+		this.tempos = tempos;
+		this.keys = keys;
+		seconds = new double[positions.length];
+		for(int i = 1; i < positions.length; i++) {
+			seconds[i] = seconds[i - 1] + (start(i) - start(i - 1)) * secondsPerUnit(i - 1);
+		}
+	}
+
+	/**
+	 * Returns the number of entries
+	 * @return size
+	 */
+	public int size() { return positions.length; }
+
+	/**
+	 * Returns whether the timeline has no entries
+	 * @return empty
+	 */
+	public boolean isEmpty() { return positions.length == 0; }
+
+	/**
+	 * Returns the position from which the given entry is in force
+	 * @param entry: index of the entry
+	 * @return position
+	 */
+	public int getPosition(int entry) { return positions[entry]; }
+
+	/**
+	 * Returns the beats per measure of the given entry
+	 * @param entry: index of the entry
+	 * @return numerator
+	 */
+	public int getTimeSignatureNumerator(int entry) { return numerators[entry]; }
+
+	/**
+	 * Returns the note that gets the beat in the given entry
+	 * @param entry: index of the entry
+	 * @return denominator
+	 */
+	public int getTimeSignatureDenominator(int entry) { return denominators[entry]; }
+
+	/**
+	 * Returns the tempo of the given entry
+	 * @param entry: index of the entry
+	 * @return tempo in beats per minute
+	 */
+	public int getTempo(int entry) { return tempos[entry]; }
+
+	/**
+	 * Returns the key of the given entry
+	 * @param entry: index of the entry
+	 * @return key signature
+	 */
+	public KeySignature getKeySignature(int entry) { return keys[entry]; }
+
+	/**
+	 * Returns the index of the entry in force at the given position: the last one starting
+	 * at or before it, or the first entry for positions before every entry.
+	 * @param position
+	 * @return index of the entry
+	 * @throws NoSuchElementException if the timeline is empty
+	 */
+	public int getEntryAt(int position) {
+		if(positions.length == 0) {
+			throw new NoSuchElementException("The metrics timeline has no entries");
+		}
+		int lo = 1;
+		int hi = positions.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(positions[mid] <= position) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo - 1;
+	}
+
+	/**
+	 * Returns the tempo in force at the given position
+	 * @param position
+	 * @return tempo in beats per minute
+	 * @throws NoSuchElementException if the timeline is empty
+	 */
+	public int getTempoAt(int position) { return tempos[getEntryAt(position)]; }
+
+	/**
+	 * Returns the key in force at the given position
+	 * @param position
+	 * @return key signature
+	 * @throws NoSuchElementException if the timeline is empty
+	 */
+	public KeySignature getKeySignatureAt(int position) { return keys[getEntryAt(position)]; }
+
+	/**
+	 * Returns the beats per measure in force at the given position
+	 * @param position
+	 * @return numerator
+	 * @throws NoSuchElementException if the timeline is empty
+	 */
+	public int getTimeSignatureNumeratorAt(int position) { return numerators[getEntryAt(position)]; }
+
+	/**
+	 * Returns the note that gets the beat at the given position
+	 * @param position
+	 * @return denominator
+	 * @throws NoSuchElementException if the timeline is empty
+	 */
+	public int getTimeSignatureDenominatorAt(int position) { return denominators[getEntryAt(position)]; }
+
+	/**
+	 * Returns the time from the start of the composition at which the given position is
+	 * played, following every tempo change before it.
+	 * @param position: at or after the start of the composition
+	 * @return time in seconds
+	 * @throws IllegalArgumentException if the position is negative
+	 * @throws NoSuchElementException if the timeline is empty
+	 */
+	public double toSeconds(int position) {
+		if(position < 0) {
+			throw new IllegalArgumentException("Position " + position + " is before the start of the composition");
+		}
+		int entry = getEntryAt(position);
+		return seconds[entry] + (position - start(entry)) * secondsPerUnit(entry);
+	}
+
+	/**
+	 * Returns the position played at the given time from the start of the composition,
+	 * rounded down to a whole FMNote rhythm value unit.
+	 * @param time: in seconds, not negative
+	 * @return position
+	 * @throws IllegalArgumentException if the time is negative
+	 * @throws NoSuchElementException if the timeline is empty
+	 */
+	public int toPosition(double time) {
+		if(time < 0) {
+			throw new IllegalArgumentException("Time " + time + " is before the start of the composition");
+		}
+		if(positions.length == 0) {
+			throw new NoSuchElementException("The metrics timeline has no entries");
+		}
+		int lo = 1;
+		int hi = seconds.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(seconds[mid] <= time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		int entry = lo - 1;
+		return start(entry) + (int)Math.floor((time - seconds[entry]) / secondsPerUnit(entry));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder("MetricsTimeline [");
+		for(int i = 0; i < positions.length; i++) {
+			if(i > 0) res.append(", ");
+			res.append(positions[i]).append(": ").append(numerators[i]).append('/').append(denominators[i])
+					.append(' ').append(tempos[i]).append(" bpm ").append(keys[i]);
+		}
+		return res.append(']').toString();
+	}
+
+	/**
+	 * Returns the position from which the given entry is in force, the first entry being in
+	 * force from the start of the composition
+	 */
+	private int start(int entry) {
+		return entry == 0 ? 0 : Math.max(positions[entry], 0);
+	}
+
+	/**
+	 * Returns the length in seconds of one FMNote rhythm value unit at the tempo of the given entry
+	 */
+	private double secondsPerUnit(int entry) {
+		return 60.0 / (tempos[entry] * (double)FMNote.QUARTER_NOTE);
+	}
+
+	/**
+	 * Collects metrics entries in any order. An entry added at the position of an earlier
+	 * one replaces it.
+	 */
+	public static final class Builder {
+
+		private int[] positions = new int[4];
+		private int[] numerators = new int[4];
+		private int[] denominators = new int[4];
+		private int[] tempos = new int[4];
+		private KeySignature[] keys = new KeySignature[4];
+		private int size;
+
+		/**
+		 * Adds a metrics entry
+		 * @param position: from which the entry is in force
+		 * @param num: beats per measure
+		 * @param denom: note that gets the beat
+		 * @param tempo: in beats per minute
+		 * @param key
+		 * @return this builder
+		 * @throws IllegalArgumentException if the tempo is not positive
+		 */
+		public Builder add(int position, int num, int denom, int tempo, KeySignature key) {
+			if(tempo <= 0) {
+				throw new IllegalArgumentException("Tempo " + tempo + " is not positive");
+			}
+			if(size == positions.length) {
+				positions = Arrays.copyOf(positions, size * 2);
+				numerators = Arrays.copyOf(numerators, size * 2);
+				denominators = Arrays.copyOf(denominators, size * 2);
+				tempos = Arrays.copyOf(tempos, size * 2);
+				keys = Arrays.copyOf(keys, size * 2);
+			}
+			positions[size] = position;
+			numerators[size] = num;
+			denominators[size] = denom;
+			tempos[size] = tempo;
+			keys[size] = key;
+			size++;
+			return this;
+		}
+
+		/**
+		 * Returns whether no entries have been added
+		 * @return empty
+		 */
+		public boolean isEmpty() { return size == 0; }
+
+		/**
+		 * Returns the timeline of the entries added so far, sorted by position.
+		 * @return timeline
+		 */
+		public MetricsTimeline build() {
+			if(size == 0) return EMPTY;
+			// order of the entries by position, the last one added winning at each position
+			Integer[] order = new Integer[size];
+			for(int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> positions[a] != positions[b] ? Integer.compare(positions[a], positions[b]) : Integer.compare(a, b));
+			int count = 0;
+			for(int i = 0; i < size; i++) {
+				if(i + 1 < size && positions[order[i + 1]] == positions[order[i]]) continue;
+				order[count++] = order[i];
+			}
+			int[] resPositions = new int[count];
+			int[] resNumerators = new int[count];
+			int[] resDenominators = new int[count];
+			int[] resTempos = new int[count];
+			KeySignature[] resKeys = new KeySignature[count];
+			for(int i = 0; i < count; i++) {
+				int entry = order[i];
+				resPositions[i] = positions[entry];
+				resNumerators[i] = numerators[entry];
+				resDenominators[i] = denominators[entry];
+				resTempos[i] = tempos[entry];
+				resKeys[i] = keys[entry];
+			}
+			return new MetricsTimeline(resPositions, resNumerators, resDenominators, resTempos, resKeys);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package framework.ds;
+
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable map from note start positions to note durations, both in FMNote rhythm value
+ * units, held in two parallel int arrays sorted by start position. This is the primitive
+ * form of the maps returned by the getRhythm methods, which measures, composition segments
+ * and compositions cache and compose without boxing a single Integer.
+ */
+public final class RhythmMap {
+
+	/** Map without any notes */
+	public static final RhythmMap EMPTY = new RhythmMap(new int[0], new int[0], 0);
+
+	// start positions, strictly increasing
+	private final int[] onsets;
+
+	// duration of the note starting at the same index
+	private final int[] durations;
+
+	// number of entries in use
+	private final int size;
+
+	private RhythmMap(int[] onsets, int[] durations, int size) {
+		this.onsets = onsets;
+		this.durations = durations;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the number of start positions in the map.
+	 * @return size
+	 */
+	public int size() { return size; }
+
+	/**
+	 * Returns the start position at the given index, in increasing order.
+	 * @param index
+	 * @return start position
+	 */
+	public int getOnset(int index) {
+		checkIndex(index);
+		return onsets[index];
+	}
+
+	/**
+	 * Returns the duration of the note starting at the given index.
+	 * @param index
+	 * @return duration
+	 */
+	public int getDuration(int index) {
+		checkIndex(index);
+		return durations[index];
+	}
+
+	/**
+	 * Returns the index of the given start position.
+	 * @param onset start position
+	 * @return index, or (-(insertion point) - 1) if no note starts there
+	 */
+	public int indexOf(int onset) {
+		return Arrays.binarySearch(onsets, 0, size, onset);
+	}
+
+	/**
+	 * Returns the duration of the note starting at the given position.
+	 * @param onset start position
+	 * @return duration, or -1 if no note starts there
+	 */
+	public int getDurationAt(int onset) {
+		int index = indexOf(onset);
+		return index < 0 ? -1 : durations[index];
+	}
+
+	/**
+	 * Returns a boxed copy of the map, as returned by the getRhythm methods.
+	 * @return map of start positions to durations
+	 */
+	public SortedMap<Integer, Integer> toSortedMap() {
+		SortedMap<Integer, Integer> res = new TreeMap<>();
+		for(int i = 0; i < size; i++) {
+			res.put(onsets[i], durations[i]);
+		}
+		return res;
+	}
+
+	private void checkIndex(int index) {
+		if(index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + " of a rhythm of size " + size);
+		}
+	}
+
+	/**
+	 * Collects start positions and durations in order. As with a SortedMap, a start position
+	 * put again replaces the duration put before it.
+	 */
+	public static final class Builder {
+
+		private int[] onsets;
+		private int[] durations;
+		private int size;
+
+		/**
+		 * Constructs a builder
+		 * @param expectedSize: number of notes expected, used to size the arrays
+		 */
+		public Builder(int expectedSize) {
+			onsets = new int[Math.max(expectedSize, 4)];
+			durations = new int[onsets.length];
+		}
+
+		/**
+		 * Adds a note. Start positions must be put in non-decreasing order.
+		 * @param onset start position
+		 * @param duration
+		 * @return this builder
+		 * @throws IllegalArgumentException if the start position is before the last one put
+		 */
+		public Builder put(int onset, int duration) {
+			if(size > 0 && onset <= onsets[size - 1]) {
+				if(onset == onsets[size - 1]) {
+					durations[size - 1] = duration;
+					return this;
+				}
+				throw new IllegalArgumentException("Start position " + onset + " put after " + onsets[size - 1]);
+			}
+			if(size == onsets.length) {
+				onsets = Arrays.copyOf(onsets, size * 2);
+				durations = Arrays.copyOf(durations, size * 2);
+			}
+			onsets[size] = onset;
+			durations[size] = duration;
+			size++;
+			return this;
+		}
+
+		/**
+		 * Adds every note of a map, with its start positions moved by the given offset.
+		 * @param rhythm
+		 * @param offset added to every start position
+		 * @return this builder
+		 */
+		public Builder putAll(RhythmMap rhythm, int offset) {
+			for(int i = 0; i < rhythm.size; i++) {
+				put(rhythm.onsets[i] + offset, rhythm.durations[i]);
+			}
+			return this;
+		}
+
+		/**
+		 * Returns the map built so far.
+		 * @return rhythm map
+		 */
+		public RhythmMap build() {
+			if(size == 0) return EMPTY;
+			return new RhythmMap(Arrays.copyOf(onsets, size), Arrays.copyOf(durations, size), size);
+		}
+	}
+}
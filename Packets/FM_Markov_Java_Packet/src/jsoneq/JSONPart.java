@@ -1,13 +0,0 @@
-package jsoneq;
-
-import java.util.ArrayList;
-
-public class JSONPart {
-    public ArrayList<JSONNote> events;
-    
-    public String name;
-    
-    public JSONPart() {
-    	events = new ArrayList<>();
-    }
-}
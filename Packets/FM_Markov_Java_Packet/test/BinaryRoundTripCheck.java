@@ -0,0 +1,158 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+import framework.ds.FMComposition;
+import framework.ds.FMCompositionSegment;
+import framework.ds.FMMeasure;
+import framework.ds.FMPart;
+import framework.ds.NoteBuffer;
+import framework.packet.PacketPart;
+import jm.music.data.Score;
+
+/**
+ * Checks that the binary encoding round-trips: every JSON Composition given
+ * is decoded directly, and also transcoded by BinaryCompositionEncoder and
+ * decoded by BinaryCompositionDecoder, and the two results are compared.
+ *
+ * Usage: java BinaryRoundTripCheck composition.json...
+ * A file may start with a mode token, as Packet input does. Prints one line
+ * per file and exits with status 1 if any composition differs.
+ *
+ * This is a development check and is not part of any packet. It is compiled
+ * against the sources of a Java Packet, whose encoding classes are the same
+ * in every packet.
+ */
+public class BinaryRoundTripCheck {
+
+	public static void main(String[] args) throws IOException {
+		boolean ok = true;
+		for(String file : args) {
+			String json = stripMode(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+
+			CompositionBuilder fromJson = new CompositionBuilder();
+			new CompositionDecoder(fromJson).decode(new StringReader(json));
+
+			ByteArrayOutputStream binary = new ByteArrayOutputStream();
+			BinaryCompositionEncoder.transcode(new StringReader(json), binary);
+			CompositionBuilder fromBinary = new CompositionBuilder();
+			new BinaryCompositionDecoder(fromBinary).decode(new ByteArrayInputStream(binary.toByteArray()));
+
+			String expected = describe(fromJson);
+			String actual = describe(fromBinary);
+			if(expected.equals(actual)) {
+				System.out.println(file + ": ok (" + json.length() + " bytes JSON, " + binary.size() + " bytes binary)");
+			} else {
+				ok = false;
+				System.out.println(file + ": differs at " + firstDifference(expected, actual));
+			}
+		}
+		if(!ok) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Removes a leading mode token from Packet input
+	 */
+	private static String stripMode(String input) {
+		String res = input.trim();
+		if(res.startsWith("{")) {
+			return res;
+		}
+		int end = 0;
+		while(end < res.length() && !Character.isWhitespace(res.charAt(end))) {
+			end++;
+		}
+		return res.substring(end);
+	}
+
+	/**
+	 * Describes everything a builder produced, one value per line
+	 */
+	private static String describe(CompositionBuilder builder) {
+		StringBuilder res = new StringBuilder();
+		FMComposition composition = builder.getComposition();
+		Score score = composition.getScore();
+		res.append("score ").append(score.getNumerator()).append('/').append(score.getDenominator())
+				.append(' ').append(score.getTempo()).append(' ').append(score.getKeyQuality()).append('\n');
+		res.append("metrics ").append(composition.getMetricsTimeline()).append('\n');
+		res.append("pattern ").append(composition.getPattern()).append('\n');
+		for(FMCompositionSegment segment : composition.getCompositionSegments()) {
+			res.append("segment ").append(segment.getKeySignature().getKeyName()).append(' ').append(segment.getTempo())
+					.append(' ').append(segment.getTimeSignature()).append('\n');
+			for(FMMeasure measure : segment.getMeasures()) {
+				res.append(" measure");
+				describe(res, measure.getNoteBuffer());
+				res.append('\n');
+			}
+		}
+		describe(res, composition.getParts(), "");
+		if(builder.getPacketTreeRoot() != null) {
+			describe(res, builder.getPacketTreeRoot(), builder.getActiveElement(), "");
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Describes the notes of a measure
+	 */
+	private static void describe(StringBuilder res, NoteBuffer notes) {
+		for(int i = 0; i < notes.size(); i++) {
+			res.append(' ').append(notes.getPitch(i)).append('@').append(notes.getStart(i))
+					.append('+').append(notes.getDuration(i)).append(notes.getTiedToNext(i) ? "~" : "");
+		}
+	}
+
+	/**
+	 * Describes parts, one line each
+	 */
+	private static void describe(StringBuilder res, List<FMPart> parts, String indent) {
+		for(FMPart part : parts) {
+			res.append(indent).append("part ").append(part.getName());
+			for(int i = 0; i < part.size(); i++) {
+				res.append(' ').append(part.getStart(i)).append('+').append(part.getDuration(i)).append('[');
+				for(int j = 0; j < part.getPitchCount(i); j++) {
+					res.append(j == 0 ? "" : ",").append(part.getPitch(i, j));
+				}
+				res.append(']');
+			}
+			res.append('\n');
+		}
+	}
+
+	/**
+	 * Describes a packet tree node and its children
+	 */
+	private static void describe(StringBuilder res, DefaultMutableTreeNode node, DefaultMutableTreeNode active, String indent) {
+		PacketPart pp = (PacketPart)node.getUserObject();
+		res.append(indent).append("node ").append(pp.getMode()).append(node == active ? " active" : "").append('\n');
+		describe(res, pp.getFMParts(), indent + " ");
+		for(int i = 0; i < node.getChildCount(); i++) {
+			describe(res, (DefaultMutableTreeNode)node.getChildAt(i), active, indent + " ");
+		}
+	}
+
+	/**
+	 * Returns the first line at which two descriptions differ
+	 */
+	private static String firstDifference(String expected, String actual) {
+		String[] a = expected.split("\n", -1);
+		String[] b = actual.split("\n", -1);
+		for(int i = 0; i < Math.max(a.length, b.length); i++) {
+			String x = i < a.length ? a[i] : "<end>";
+			String y = i < b.length ? b[i] : "<end>";
+			if(!x.equals(y)) {
+				return "line " + (i + 1) + "\n  JSON:   " + x + "\n  binary: " + y;
+			}
+		}
+		return "<none>";
+	}
+}
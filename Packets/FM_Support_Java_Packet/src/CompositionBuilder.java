@@ -0,0 +1,252 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+import framework.ds.DiatonicKeySignature;
+import framework.ds.FMComposition;
+import framework.ds.FMCompositionSegment;
+import framework.ds.FMMeasure;
+import framework.ds.FMNote;
+import framework.ds.KeySignature;
+import framework.ds.MetricsTimeline;
+import framework.packet.PacketPart;
+import framework.packet.PacketPart.Packet_Enum;
+import jm.music.data.Score;
+
+/**
+ * Builds the FMComposition, jMusic parts and packet tree handed to a Packet
+ * from the values read by a composition decoder. Shared by the JSON and the
+ * binary decoders so that both produce the same objects.
+ *
+ * Calls may arrive in any order. Pattern segments and pattern entries are
+ * held back until finish, when every segment is built with the metrics in
+ * force where the pattern first plays it.
+ */
+public class CompositionBuilder implements CompositionSink {
+
+	/** Composition being filled */
+	private FMComposition composition;
+
+	/** Score of the composition, held so that setting the metrics does not build pending parts */
+	private Score score;
+
+	/** Root of the packet tree, or null if the input has none */
+	private DefaultMutableTreeNode packetTreeRoot;
+
+	/** Tree node whose PacketPart is flagged as active */
+	private DefaultMutableTreeNode activeElement;
+
+	/** Whether the first composition metrics entry has been applied to the score */
+	private boolean metricsRead;
+
+	/** Every composition metrics entry added */
+	private MetricsTimeline.Builder metrics;
+
+	/** Chord progressions of the segments added before finish, by name */
+	private Map<String, EventList> pendingSegments;
+
+	/** Pattern entries added before finish */
+	private List<String> pendingPattern;
+
+	/**
+	 * Constructs a builder for a single composition
+	 */
+	public CompositionBuilder() {
+		this(new FMComposition());
+	}
+
+	/**
+	 * Constructs a builder filling the given empty composition, whose
+	 * createCompositionSegment decides how the segments are stored
+	 * @param composition
+	 */
+	public CompositionBuilder(FMComposition composition) {
+		this.composition = composition;
+		score = composition.getScore();
+		metrics = new MetricsTimeline.Builder();
+		pendingSegments = new LinkedHashMap<>();
+		pendingPattern = new ArrayList<>();
+	}
+
+	/**
+	 * Returns the composition being built
+	 * @return composition
+	 */
+	public FMComposition getComposition() { return composition; }
+
+	/**
+	 * Returns the root of the packet tree
+	 * @return root node, or null if the composition has no packet tree
+	 */
+	public DefaultMutableTreeNode getPacketTreeRoot() { return packetTreeRoot; }
+
+	/**
+	 * Returns the packet tree node flagged as active
+	 * @return active node, or null if none is flagged
+	 */
+	public DefaultMutableTreeNode getActiveElement() { return activeElement; }
+
+	/**
+	 * Adds a composition metrics entry. Every entry goes into the composition's
+	 * metrics timeline; the first entry added also sets the score's metrics.
+	 * @param num: beats per measure
+	 * @param denom: note that gets the beat
+	 * @param tempo: in beats per minute
+	 * @param tonic: pitch of the tonic
+	 * @param intervals: semitones between the degrees of the key's scale
+	 * @param position: start of the entry in FMNote rhythm value units
+	 */
+	@Override
+	public void addMetrics(int num, int denom, int tempo, int tonic, int[] intervals, int position) {
+		metrics.add(position, num, denom, tempo, DiatonicKeySignature.valueOf(tonic, intervals));
+		if(metricsRead) {
+			return;
+		}
+		score.setNumerator(num);
+		score.setDenominator(denom);
+		score.setTempo(tempo);
+		//1 for minor, 0 major.  Cheap heuristic
+		score.setKeyQuality(intervals.length > 1 && intervals[1] == 1 ? 1 : 0);
+		metricsRead = true;
+	}
+
+	/**
+	 * Adds a pattern segment, built from its chord progression when the
+	 * composition is finished. A segment added again under the same name
+	 * replaces the earlier one.
+	 * @param name: name of the segment
+	 * @param chordProgression
+	 */
+	@Override
+	public void addSegment(String name, EventList chordProgression) {
+		pendingSegments.put(name, chordProgression);
+	}
+
+	/**
+	 * Appends a segment name to the composition's pattern
+	 * @param name
+	 */
+	@Override
+	public void addPatternEntry(String name) {
+		pendingPattern.add(name);
+	}
+
+	/**
+	 * Adds a previously generated part to the composition. The jMusic Part is
+	 * only built if the Packet requests the score.
+	 * @param events
+	 */
+	@Override
+	public void addPart(EventList events) {
+		composition.addPart(events.toFMPart());
+	}
+
+	/**
+	 * Creates a packet tree node holding a PacketPart. Children are added to
+	 * the returned node by the caller. The jMusic Part is only built if the
+	 * Packet requests the PacketPart's parts.
+	 * @param mode: mode of the packet at this node
+	 * @param part: part generated at this node, or null
+	 * @param active: whether this is the node the packet is executed from
+	 * @return node
+	 */
+	@Override
+	public DefaultMutableTreeNode createTreeNode(Packet_Enum mode, EventList part, boolean active) {
+		DefaultMutableTreeNode node = new DefaultMutableTreeNode();
+		PacketPart pp = new PacketPart(mode);
+		if(part != null) {
+			pp.addPart(part.toFMPart());
+		}
+		node.setUserObject(pp);
+		if(active) {
+			activeElement = node;
+		}
+		return node;
+	}
+
+	/**
+	 * Sets the root of the packet tree
+	 * @param root
+	 */
+	@Override
+	public void setPacketTreeRoot(DefaultMutableTreeNode root) {
+		packetTreeRoot = root;
+	}
+
+	/**
+	 * Applies everything held back and returns the composition. Segments take
+	 * the metrics in force at the first place the pattern plays them, and
+	 * segments the pattern never plays take those in force at the start.
+	 * @return composition
+	 */
+	public FMComposition finish() {
+		MetricsTimeline timeline = metrics.build();
+		composition.setMetricsTimeline(timeline);
+
+		Map<String, Integer> durations = new HashMap<>();
+		int position = 0;
+		for(String name : pendingPattern) {
+			if(pendingSegments.containsKey(name)) {
+				durations.put(name, registerSegment(name, pendingSegments.remove(name), timeline, position));
+			}
+			Integer duration = durations.get(name);
+			if(duration != null) {
+				position += duration;
+			}
+		}
+		for(Map.Entry<String, EventList> segment : pendingSegments.entrySet()) {
+			registerSegment(segment.getKey(), segment.getValue(), timeline, 0);
+		}
+		pendingSegments.clear();
+
+		composition.addCompositionSegments(pendingPattern);
+		pendingPattern.clear();
+		return composition;
+	}
+
+	/**
+	 * Builds the measures of a pattern segment from its chord progression,
+	 * with the metrics in force at the given position, and registers it with
+	 * the composition. Without any metrics the score's defaults are used.
+	 * @return duration of the segment
+	 */
+	private int registerSegment(String name, EventList chordProgression, MetricsTimeline timeline, int position) {
+		int num;
+		int denom;
+		int tempo;
+		KeySignature key;
+		if(timeline.isEmpty()) {
+			num = score.getNumerator();
+			denom = score.getDenominator();
+			tempo = (int)score.getTempo();
+			key = DiatonicKeySignature.ofSharpsOrFlats(0, score.getKeyQuality());
+		} else {
+			int entry = timeline.getEntryAt(position);
+			num = timeline.getTimeSignatureNumerator(entry);
+			denom = timeline.getTimeSignatureDenominator(entry);
+			tempo = timeline.getTempo(entry);
+			key = timeline.getKeySignature(entry);
+		}
+		FMCompositionSegment newSeg = composition.createCompositionSegment(key, tempo);
+		FMMeasure newMeasure = new FMMeasure(num, denom);
+		int pos = 0;
+		for(int i = 0; i < chordProgression.size(); i++) {
+			int duration = chordProgression.getDuration(i);
+			for(int j = 0; j < chordProgression.getPitchCount(i); j++) {
+				newMeasure.addNote(new FMNote(chordProgression.getPitch(i, j), duration), pos);
+			}
+			pos += duration;
+			if(pos == newMeasure.getMeasureLength()) {
+				pos = 0;
+				newSeg.addMeasure(newMeasure);
+				newMeasure = new FMMeasure(num, denom);
+			}
+		}
+		composition.registerCompositionSegment(name, newSeg);
+		return Math.max(0, newSeg.getDuration());
+	}
+}
@@ -1,260 +1,244 @@
 import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Properties;
-import java.util.Scanner;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 
 import javax.swing.tree.DefaultMutableTreeNode;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
-import framework.ds.DiatonicKeySignature;
 import framework.ds.FMComposition;
-import framework.ds.FMCompositionSegment;
-import framework.ds.FMMeasure;
-import framework.ds.FMNote;
+import framework.ds.OffHeapFMComposition;
 import framework.packet.FMPacket;
-import framework.packet.PacketPart;
-import framework.packet.PacketPart.Packet_Enum;
-import jm.music.data.Note;
 import jm.music.data.Part;
-import jm.music.data.Phrase;
-import jsoneq.JSONNote;
-import jsoneq.JSONPart;
 
 public class FMPacketWrapper {
-	private static DefaultMutableTreeNode activeElement;
+
+	/** Argument which starts the wrapper as a long-lived PacketHost */
+	private static final String HOST_FLAG = "--host";
+
+	/** Argument which runs the wrapper as a PacketBatch, optionally followed by a worker count */
+	private static final String BATCH_FLAG = "--batch";
 
 	public static void main(String[] args) {
 
-		String json = "";
-		String packetMode = "";
-		int v = 0;
-		while(v != -1) {
+		Properties packetProperties = loadProps();
+
+		if(args.length > 0 && args[0].equals(BATCH_FLAG)) {
+			int workers = Runtime.getRuntime().availableProcessors();
+			if(args.length > 1) {
+				workers = Integer.parseInt(args[1]);
+			}
 			try {
-				v = System.in.read();
+				new PacketBatch(packetProperties, workers).run(System.in, System.out);
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
 				e.printStackTrace();
+				System.exit(1);
 			}
-			if(v > 31) {
-				json += ("" + (char)v);
+			return;
+		}
+
+		PhaseProfile profile = PhaseProfile.ENABLED ? new PhaseProfile() : null;
+		FMPacket packet = loadPacket(packetProperties);
+		if(PhaseProfile.ENABLED) profile.endPhase("load");
+
+		if(args.length > 0 && args[0].equals(HOST_FLAG)) {
+			try {
+				new PacketHost(packet, packetProperties).run(System.in, System.out);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
 			}
+			return;
 		}
 
-		packetMode = json.substring(0, json.indexOf(' ')).trim();
-		json = json.substring(json.indexOf(' ')).trim();
-		
-		System.err.println(packetMode);
-		System.err.println("\n\n\n");
-		System.err.println(json);
-		
-		Properties packetProperties = loadProps();
-		
-		Class<?> c;
-		FMPacket packet = null;
+		PacketInput input = new PacketInput(System.in);
+		String packetMode = "";
+		InputStream source = null;
+		String outputPath = "";
+		boolean binary = false;
 		try {
-			c = Class.forName(packetProperties.getProperty("FMPacket_class_name"));
-			//System.out.println(packetProperties.getProperty("FMPacket_class_name"));
-			packet = (FMPacket) c.newInstance();
-		} catch (ClassNotFoundException e) {
+			packetMode = input.readMode();
+			if(input.isInline()) {
+				source = input.openStream();
+			} else {
+				//The Shell passed the composition as a file, mapped rather than piped
+				source = MappedInput.open(Paths.get(input.readLine()));
+				outputPath = input.readLine();
+			}
+			binary = BinaryWireFormat.hasMagic(source, BinaryWireFormat.COMPOSITION_MAGIC);
+		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
-		} catch (InstantiationException e) {
+		}
+
+		System.err.println(packetMode);
+		if(PhaseProfile.ENABLED) profile.endPhase("read");
+
+		FMComposition composition = null;
+		DefaultMutableTreeNode activeElement = null;
+		try {
+			if(binary) {
+				BinaryCompositionDecoder decoder = new BinaryCompositionDecoder(newBuilder(packetProperties));
+				composition = decoder.decode(source);
+				activeElement = decoder.getActiveElement();
+			} else {
+				CompositionDecoder decoder = newDecoder(packetProperties);
+				composition = decoder.decode(new InputStreamReader(source, StandardCharsets.UTF_8));
+				activeElement = decoder.getActiveElement();
+			}
+		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
-		} catch (IllegalAccessException e) {
+		}
+
+		if(PhaseProfile.ENABLED) profile.endPhase("decode");
+
+		Collection<Part> result = execute(packet, packetMode, composition, activeElement);
+		if(PhaseProfile.ENABLED) profile.endPhase("execute");
+
+		try {
+			WritableByteChannel out;
+			if(outputPath.isEmpty()) {
+				out = new FileOutputStream(FileDescriptor.out).getChannel();
+			} else {
+				out = FileChannel.open(Paths.get(outputPath), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			}
+			//Answer in the encoding the composition was sent in
+			if(binary) {
+				BinaryCompositionEncoder.writePart(Channels.newOutputStream(out), result, getPartName(packetProperties));
+			} else {
+				PartWriter.toChannel(out).write(result, getPartName(packetProperties));
+			}
+			if(!outputPath.isEmpty()) {
+				out.close();
+			}
+		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
-		
-		Collection<Part> result = null;
-		
-		JsonParser parser = new JsonParser();
-        JsonObject jsonRoot = parser.parse(json).getAsJsonObject();
-        		
-		FMComposition composition = deserializeComposition(jsonRoot);
-		
-		DefaultMutableTreeNode currentExecutionNode = deserializeTree(jsonRoot.get("packetTreeRoot"), composition);
+		if(PhaseProfile.ENABLED) {
+			profile.endPhase("write");
+			profile.emit(packetProperties.getProperty("FMPacket_class_name"), packetMode);
+		}
+	}
 
+	/**
+	 * Runs the packet in the given mode on a frozen snapshot of the composition
+	 * @param packet
+	 * @param packetMode: "melodic", "harmonic" or "supporting"
+	 * @param composition
+	 * @param activeElement: packet tree node the packet is executed from
+	 * @return parts generated by the packet, or null if the mode is unknown
+	 */
+	static Collection<Part> execute(FMPacket packet, String packetMode, FMComposition composition, DefaultMutableTreeNode activeElement) {
+		Collection<Part> result = null;
+		//Packets only read the composition, so they get the array-backed snapshot
+		FMComposition frozen = composition.freeze();
 		switch(packetMode) {
 		case "melodic":
-			result = packet.executeMelody(composition, activeElement);
+			result = packet.executeMelody(frozen, activeElement);
 			break;
 		case "harmonic":
-			result = packet.executeHarmony(composition, activeElement);
+			result = packet.executeHarmony(frozen, activeElement);
 			break;
 		case "supporting":
-			result = packet.executeSupport(composition, activeElement);
+			result = packet.executeSupport(frozen, activeElement);
 			break;
 		default:
 		}
-		
-		String newParts = serializeParts(result, packetProperties);
-		
-		System.out.println(newParts);
+		return result;
 	}
 
-	private static String serializeParts(Collection<Part> result, Properties packetProperties) {
-        GsonBuilder builder = new GsonBuilder();
-        Gson gson = builder.create();
-        JSONPart pp = new JSONPart();
-        for(Part p : result) {
-            pp.name = "Part from " + packetProperties.getProperty("FMPacket_class_name");
-            for(Object phrase : p.getPhraseList()) {
-                for(Object n : ((Phrase)phrase).getNoteList()) {
-                    JSONNote e = new JSONNote();
-                    e.pitch = ((Note)n).getPitch();
-                    e.duration = FMComposition.getFMRhythmValue(((Note)n).getRhythmValue());
-                    pp.events.add(e);
-                }
-            }
-        }
-        return gson.toJson(pp);
+	/**
+	 * Constructs a builder for a single composition, which holds its notes
+	 * off the Java heap if the packetdata entry off_heap_composition is true
+	 * (false by default)
+	 * @param packetProperties
+	 * @return builder
+	 */
+	static CompositionBuilder newBuilder(Properties packetProperties) {
+		boolean offHeap = Boolean.parseBoolean(packetProperties.getProperty("off_heap_composition", "false").trim());
+		return new CompositionBuilder(offHeap ? new OffHeapFMComposition() : new FMComposition());
 	}
 
-	private static DefaultMutableTreeNode deserializeTree(JsonElement jsonElement, FMComposition composition) {
-		if(jsonElement == null) {
-			return null;
-		}
-		System.err.println("AAAAA");
-		DefaultMutableTreeNode root = new DefaultMutableTreeNode();
-		PacketPart.Packet_Enum mode = Packet_Enum.Melody;
-        if(jsonElement.getAsJsonObject().get("mode").getAsString().equalsIgnoreCase("harmony")) {
-            mode = Packet_Enum.Harmony;
-        }
-        if(jsonElement.getAsJsonObject().get("mode").getAsString().equalsIgnoreCase("support")) {
-            mode = Packet_Enum.Support;
-        }
-		PacketPart pp = new PacketPart(mode);
-		root.setUserObject(pp);
-		//p.setInstrument(jsonElement.getAsJsonObject().get("instrumnet").getAsInt());
-		JsonObject partJson = jsonElement.getAsJsonObject().get("part").getAsJsonObject();
-        Part p = new Part();
-        pp.getPart().add(p);
-        JsonArray notesJson = partJson.getAsJsonObject().get("events").getAsJsonArray();
-        for(JsonElement e : notesJson) {
-            int pitch = 0;
-            if(e.getAsJsonObject().has("pitch")) {
-                pitch = e.getAsJsonObject().get("pitch").getAsInt();
-            }
-            if(e.getAsJsonObject().has("pitches")) {
-                //We don't support chords in parts because JMusic supports them like wet tissue paper supports a brick
-                pitch = e.getAsJsonObject().get("pitches").getAsJsonArray().get(0).getAsInt();
-            }
-            double dur = e.getAsJsonObject().get("duration").getAsDouble() / 96.0;
-            Phrase ppp = new Phrase();
-            ppp.add(new Note(pitch, dur));
-            p.add(ppp);
-        }
-		
-		for(JsonElement e : jsonElement.getAsJsonObject().get("children").getAsJsonArray()) {
-			DefaultMutableTreeNode newval = deserializeTree(e, composition);
-            root.add(newval);
-        }
-        if(jsonElement.getAsJsonObject().get("isActive").getAsBoolean()) {
-    		System.err.println("BBBBB");
-			FMPacketWrapper.activeElement = root;
-        }
-		System.err.println("CCCCC");
-        return root;
-        
+	/**
+	 * Constructs a JSON decoder which skips the parts of the composition the
+	 * packet declares it does not use, through the uses_parts and
+	 * uses_packet_tree entries of its packetdata (both true by default).
+	 * @param packetProperties
+	 * @return decoder for a single composition
+	 */
+	static CompositionDecoder newDecoder(Properties packetProperties) {
+		CompositionDecoder decoder = new CompositionDecoder(newBuilder(packetProperties));
+		decoder.setReadParts(Boolean.parseBoolean(packetProperties.getProperty("uses_parts", "true").trim()));
+		decoder.setReadPacketTree(Boolean.parseBoolean(packetProperties.getProperty("uses_packet_tree", "true").trim()));
+		return decoder;
+	}
+
+	/**
+	 * Returns the name given to the Part written for the packet's output
+	 * @param packetProperties
+	 * @return part name
+	 */
+	static String getPartName(Properties packetProperties) {
+		return "Part from " + packetProperties.getProperty("FMPacket_class_name");
 	}
-	
 
-    private static FMComposition deserializeComposition(JsonElement compJsonElement) {
-        
-        //
-        // BASIC BULLSHIT
-        //
-		JsonObject met = compJsonElement.getAsJsonObject().get("metrics").getAsJsonArray().get(0).getAsJsonObject();
-        int timeSigNum = met.get("timeSignature").getAsJsonObject().get("num").getAsInt();
-        int timeSigDenom = met.get("timeSignature").getAsJsonObject().get("denom").getAsInt();
-        int tempo = met.get("tempo").getAsInt();
-        int tonic = met.get("key").getAsJsonObject().get("tonic").getAsInt();
-        JsonArray intervalsJSON = met.get("key").getAsJsonObject().get("intervals").getAsJsonArray();
-        ArrayList<Integer> intervalsAL = new ArrayList<>();
-        for(JsonElement e : intervalsJSON) {
-            intervalsAL.add(e.getAsInt());
-        }
-        FMComposition compo = new FMComposition();
-        compo.getScore().setNumerator(timeSigNum);
-        compo.getScore().setDenominator(timeSigDenom);
-        compo.getScore().setTempo(tempo);
-        compo.getScore().setKeyQuality(intervalsAL.get(1) == 1 ? 1 : 0); //1 for minor, 0 major.  Cheap heuristic
-        
-        //
-        // SEGMENT CONTENT
-        //
-        JsonArray patternSegmentsJson = compJsonElement.getAsJsonObject().getAsJsonArray("patternSegments");
-        for(JsonElement e : patternSegmentsJson) {
-            FMCompositionSegment newSeg = new FMCompositionSegment(new DiatonicKeySignature(0, compo.getScore().getKeyQuality()), (int)compo.getScore().getTempo());
-            
-            String name = e.getAsJsonObject().get("name").getAsString();
-            JsonArray notesJson = e.getAsJsonObject().get("chordProgression").getAsJsonObject().get("events").getAsJsonArray();
-            
-            FMMeasure newMeasure = new FMMeasure(compo.getScore().getNumerator(), compo.getScore().getDenominator());
-            int pos = 0;
-            
-            for(JsonElement nn : notesJson) {
-                JsonArray pitchesJson = nn.getAsJsonObject().get("pitches").getAsJsonArray();
-                int duration = nn.getAsJsonObject().get("duration").getAsInt();
-                for(JsonElement d : pitchesJson) {
-                    FMNote n = new FMNote(d.getAsInt(), duration);
-                    newMeasure.addNote(n, pos);
-                }
-                pos += duration;
-                if(pos == newMeasure.getMeasureLength()) {
-                    pos = 0;
-                    newSeg.addMeasure(newMeasure);
-                    newMeasure = new FMMeasure(compo.getScore().getNumerator(), compo.getScore().getDenominator());
-                }
-            }
-            compo.registerCompositionSegment(name, newSeg);
-        }
-        
-        //
-        // SEGMENTS ORDER
-        //
-        JsonArray compositionSegmentNamesJson = compJsonElement.getAsJsonObject().getAsJsonArray("pattern");
-        for(JsonElement e : compositionSegmentNamesJson) {
-            compo.addCompositionSegment(e.getAsString());
-        }
-        
-        //PARTS
-        JsonArray partsJson = compJsonElement.getAsJsonObject().get("parts").getAsJsonArray();
-        for(JsonElement partJson : partsJson) {
-	        Part p = new Part();
-	        compo.getScore().addPart(p);
-	        JsonArray notesJson = partJson.getAsJsonObject().get("events").getAsJsonArray();
-	        for(JsonElement e : notesJson) {
-	            int pitch = 0;
-	            if(e.getAsJsonObject().has("pitch")) {
-	                pitch = e.getAsJsonObject().get("pitch").getAsInt();
-	            }
-	            if(e.getAsJsonObject().has("pitches")) {
-	                //We don't support chords in parts because JMusic supports them like wet tissue paper supports a brick
-	                pitch = e.getAsJsonObject().get("pitches").getAsJsonArray().get(0).getAsInt();
-	            }
-	            double dur = e.getAsJsonObject().get("duration").getAsDouble() / 96.0;
-	            Phrase ppp = new Phrase();
-	            ppp.add(new Note(pitch, dur));
-	            p.add(ppp);
-	        }
-        }
-        return compo;
+	/**
+	 * Instantiates the packet. Packets are discovered through ServiceLoader
+	 * from META-INF/services/framework.packet.FMPacket, preferring the one
+	 * named by FMPacket_class_name if several are registered; the class named
+	 * in packetdata is only loaded reflectively if none is registered.
+	 * @param packetProperties
+	 * @return packet
+	 */
+	static FMPacket loadPacket(Properties packetProperties) {
+		String className = packetProperties.getProperty("FMPacket_class_name");
+		FMPacket packet = null;
+		try {
+			for(FMPacket candidate : ServiceLoader.load(FMPacket.class)) {
+				if(packet == null || candidate.getClass().getName().equals(className)) {
+					packet = candidate;
+				}
+			}
+		} catch (ServiceConfigurationError e) {
+			e.printStackTrace();
+		}
+		if(packet != null) {
+			return packet;
+		}
+
+		Class<?> c;
+		try {
+			c = Class.forName(className);
+			//System.out.println(packetProperties.getProperty("FMPacket_class_name"));
+			packet = (FMPacket) c.newInstance();
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (InstantiationException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		return packet;
 	}
 
 	private static Properties loadProps() {
-		InputStream in = FMPacketWrapper.class.getResourceAsStream("/packetdata"); 
+		InputStream in = FMPacketWrapper.class.getResourceAsStream("/packetdata");
 		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 		Properties packetProperties = new Properties();
 		try {
@@ -0,0 +1,231 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import framework.ds.FMComposition;
+import framework.packet.FMPacket;
+import framework.packet.FMSeededPacket;
+import jm.music.data.Part;
+
+/**
+ * Offline batch mode of FMPacketWrapper, started with the --batch argument
+ * and an optional worker count. Reads JSON Lines from the input, one request
+ * per line:
+ * <pre>
+ * {"mode": "melodic", "seed": "abc", "composition": {...}}
+ * </pre>
+ * and runs them concurrently on a fixed pool of workers. Every worker thread
+ * has its own packet instance, since packets keep per-run state in fields.
+ * Results are written one per line, in input order:
+ * <pre>
+ * {"seq": 0, "part": {...}}
+ * {"seq": 1, "error": "..."}
+ * </pre>
+ * The seed is passed to packets implementing FMSeededPacket. A request
+ * without a seed runs with a random one.
+ */
+public class PacketBatch {
+
+	/** Requests in flight per worker before the reader waits for results */
+	private static final int QUEUE_DEPTH_PER_WORKER = 4;
+
+	/** Contents of the packet's packetdata, used to create packet instances */
+	private final Properties packetProperties;
+
+	/** Name given to the JSON Parts written */
+	private final String partName;
+
+	/** Number of worker threads */
+	private final int workers;
+
+	/** Packet instance owned by each worker thread */
+	private final ThreadLocal<FMPacket> packets;
+
+	/**
+	 * Constructs a batch runner
+	 * @param packetProperties: contents of the packet's packetdata
+	 * @param workers: number of worker threads
+	 */
+	public PacketBatch(final Properties packetProperties, int workers) {
+		this.packetProperties = packetProperties;
+		this.partName = FMPacketWrapper.getPartName(packetProperties);
+		this.workers = Math.max(1, workers);
+		this.packets = new ThreadLocal<FMPacket>() {
+			@Override
+			protected FMPacket initialValue() {
+				return FMPacketWrapper.loadPacket(PacketBatch.this.packetProperties);
+			}
+		};
+	}
+
+	/**
+	 * Runs every request on the input and writes the results in input order
+	 * @param requests: JSON Lines requests
+	 * @param results: destination of JSON Lines results
+	 * @throws IOException if a stream fails
+	 */
+	public void run(InputStream requests, OutputStream results) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(requests, StandardCharsets.UTF_8));
+		Writer out = new OutputStreamWriter(results, StandardCharsets.UTF_8);
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		Deque<Future<String>> inFlight = new ArrayDeque<>();
+		try {
+			long seq = 0;
+			long written = 0;
+			String line;
+			while((line = in.readLine()) != null) {
+				if(line.trim().isEmpty()) {
+					continue;
+				}
+				inFlight.add(pool.submit(new Request(seq++, line)));
+				if(inFlight.size() >= workers * QUEUE_DEPTH_PER_WORKER) {
+					writeResult(out, written++, inFlight.poll());
+				}
+				while(!inFlight.isEmpty() && inFlight.peek().isDone()) {
+					writeResult(out, written++, inFlight.poll());
+				}
+			}
+			while(!inFlight.isEmpty()) {
+				writeResult(out, written++, inFlight.poll());
+			}
+		} finally {
+			pool.shutdownNow();
+			out.flush();
+		}
+	}
+
+	/**
+	 * Waits for a result and writes it as one line. A request which failed
+	 * with an Error or an exception its worker did not report, such as running
+	 * out of stack on a malformed composition, is written as an error line so
+	 * the other requests still run.
+	 */
+	private void writeResult(Writer out, long seq, Future<String> result) throws IOException {
+		try {
+			out.write(result.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a result", e);
+		} catch (ExecutionException e) {
+			out.write(errorLine(seq, e.getCause()));
+		}
+		out.write('\n');
+	}
+
+	/**
+	 * Returns the result line reporting that a request failed
+	 */
+	private static String errorLine(long seq, Throwable error) throws IOException {
+		StringWriter text = new StringWriter();
+		JsonWriter json = new JsonWriter(text);
+		json.setHtmlSafe(true);
+		json.beginObject();
+		json.name("seq").value(seq);
+		json.name("error").value(error.toString());
+		json.endObject();
+		json.flush();
+		return text.toString();
+	}
+
+	/**
+	 * One line of input, parsed and executed on a worker thread
+	 */
+	private class Request implements Callable<String> {
+
+		/** Position of the request in the input */
+		private final long seq;
+
+		/** Request text */
+		private final String line;
+
+		public Request(long seq, String line) {
+			this.seq = seq;
+			this.line = line;
+		}
+
+		@Override
+		public String call() throws IOException {
+			StringWriter text = new StringWriter();
+			JsonWriter json = new JsonWriter(text);
+			json.setHtmlSafe(true);
+			json.beginObject();
+			json.name("seq").value(seq);
+			try {
+				Collection<Part> result = execute();
+				json.name("part");
+				PartWriter.writePart(json, result, partName);
+			} catch (RuntimeException | IOException e) {
+				json.name("error").value(e.toString());
+			} catch (Error e) {
+				// the run stopped partway through, so its packet may hold stale state
+				packets.remove();
+				throw e;
+			}
+			json.endObject();
+			json.flush();
+			return text.toString();
+		}
+
+		/**
+		 * Parses the request and runs this worker's packet on it
+		 */
+		private Collection<Part> execute() throws IOException {
+			String packetMode = null;
+			String seed = null;
+			CompositionDecoder decoder = null;
+			JsonReader reader = new JsonReader(new StringReader(line));
+			reader.beginObject();
+			while(reader.hasNext()) {
+				switch(reader.nextName()) {
+				case "mode":
+					packetMode = reader.nextString();
+					break;
+				case "seed":
+					if(reader.peek() == JsonToken.NULL) {
+						reader.nextNull();
+					} else {
+						seed = reader.nextString();
+					}
+					break;
+				case "composition":
+					decoder = FMPacketWrapper.newDecoder(packetProperties);
+					decoder.decode(reader);
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if(packetMode == null || decoder == null) {
+				throw new IOException("Request " + seq + " needs both a mode and a composition");
+			}
+
+			FMPacket packet = packets.get();
+			if(packet instanceof FMSeededPacket) {
+				((FMSeededPacket)packet).setSeed(seed == null ? "" : seed);
+			}
+			FMComposition composition = decoder.getComposition();
+			return FMPacketWrapper.execute(packet, packetMode, composition, decoder.getActiveElement());
+		}
+	}
+}
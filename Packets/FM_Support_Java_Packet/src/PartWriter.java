@@ -0,0 +1,164 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Vector;
+
+import com.google.gson.stream.JsonWriter;
+
+import framework.ds.FMComposition;
+import jm.music.data.Note;
+import jm.music.data.Part;
+import jm.music.data.Phrase;
+
+/**
+ * Streams the parts generated by a Packet as a single JSON Part. Events are
+ * written while walking Part, Phrase and Note, so no intermediate object
+ * or output String is built. Each event is a note with its pitch, its
+ * duration in FMNote rhythm value units and every articulation flag unset,
+ * as the Shell reads a JSON Part.
+ */
+public class PartWriter {
+
+	/** Number of characters buffered before they are flushed to the channel */
+	private static final int CHUNK_SIZE = 1 << 14;
+
+	/** Number of pitches, from 0, whose JSON text is cached */
+	private static final int CACHED_PITCHES = 128;
+
+	/** Largest duration, in FMNote rhythm value units, whose JSON text is cached */
+	private static final int CACHED_DURATIONS = 4 * 384;
+
+	/** JSON text of the unset articulation flags */
+	private static final String ZERO = "0";
+
+	/** JSON text of pitches 0-127 */
+	private static final String[] PITCH_TEXT = new String[CACHED_PITCHES];
+
+	/** JSON text of durations, filled as they are first written */
+	private static final String[] DURATION_TEXT = new String[CACHED_DURATIONS + 1];
+
+	static {
+		for(int i = 0; i < CACHED_PITCHES; i++) {
+			PITCH_TEXT[i] = Integer.toString(i);
+		}
+	}
+
+	/** Destination of the JSON text */
+	private final Writer out;
+
+	/**
+	 * Constructs a PartWriter writing to the given Writer
+	 * @param out: destination of the JSON text
+	 */
+	public PartWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Constructs a PartWriter writing to standard output through a channel
+	 * which is flushed in chunks of CHUNK_SIZE characters.
+	 * @return writer for standard output
+	 */
+	public static PartWriter toStandardOutput() {
+		return toChannel(new FileOutputStream(FileDescriptor.out).getChannel());
+	}
+
+	/**
+	 * Constructs a PartWriter writing to the given channel, such as the
+	 * output file named by the Shell, in chunks of CHUNK_SIZE characters.
+	 * @param channel: destination of the UTF-8 JSON text
+	 * @return writer for the channel
+	 */
+	public static PartWriter toChannel(WritableByteChannel channel) {
+		return new PartWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), CHUNK_SIZE));
+	}
+
+	/**
+	 * Writes the notes of every given part as one JSON Part, followed by a
+	 * newline, and flushes the output.
+	 * @param parts: parts generated by the Packet, may be null
+	 * @param name: name of the JSON Part
+	 * @throws IOException
+	 */
+	public void write(Collection<Part> parts, String name) throws IOException {
+		JsonWriter json = new JsonWriter(out);
+		json.setHtmlSafe(true);
+		writePart(json, parts, name);
+		json.flush();
+		out.write('\n');
+		out.flush();
+	}
+
+	/**
+	 * Writes the notes of every given part as one JSON Part value on the given
+	 * JsonWriter, so that it can be embedded in a larger document.
+	 * @param json: destination, positioned where a value is expected
+	 * @param parts: parts generated by the Packet, may be null
+	 * @param name: name of the JSON Part
+	 * @throws IOException
+	 */
+	public static void writePart(JsonWriter json, Collection<Part> parts, String name) throws IOException {
+		json.beginObject();
+		json.name("events");
+		json.beginArray();
+		boolean named = false;
+		if(parts != null) {
+			for(Part p : parts) {
+				named = true;
+				Vector<?> phrases = p.getPhraseList();
+				for(int i = 0; i < phrases.size(); i++) {
+					Vector<?> notes = ((Phrase)phrases.get(i)).getNoteList();
+					for(int j = 0; j < notes.size(); j++) {
+						Note n = (Note)notes.get(j);
+						writeNote(json, n.getPitch(), FMComposition.getFMRhythmValue(n.getRhythmValue()));
+					}
+				}
+			}
+		}
+		json.endArray();
+		if(named) {
+			json.name("name").value(name);
+		}
+		json.endObject();
+	}
+
+	/**
+	 * Writes one note event: pitch, duration, type and the articulation flags
+	 */
+	private static void writeNote(JsonWriter json, int pitch, int duration) throws IOException {
+		json.beginObject();
+		json.name("pitch");
+		if(pitch >= 0 && pitch < CACHED_PITCHES) {
+			json.jsonValue(PITCH_TEXT[pitch]);
+		} else {
+			json.value(pitch);
+		}
+		json.name("duration");
+		if(duration >= 0 && duration <= CACHED_DURATIONS) {
+			String text = DURATION_TEXT[duration];
+			if(text == null) {
+				text = Double.toString(duration);
+				DURATION_TEXT[duration] = text;
+			}
+			json.jsonValue(text);
+		} else {
+			json.value((double)duration);
+		}
+		json.name("type").value("note");
+		json.name("triplet").jsonValue(ZERO);
+		json.name("dotted").jsonValue(ZERO);
+		json.name("double_dotted").jsonValue(ZERO);
+		json.name("staccato").jsonValue(ZERO);
+		json.name("tenuto").jsonValue(ZERO);
+		json.name("accent").jsonValue(ZERO);
+		json.name("fermata").jsonValue(ZERO);
+		json.name("tied").jsonValue(ZERO);
+		json.name("slurred").jsonValue(ZERO);
+		json.endObject();
+	}
+}
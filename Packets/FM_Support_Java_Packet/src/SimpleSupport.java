@@ -1,5 +1,4 @@
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
@@ -8,8 +7,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 import javax.swing.tree.DefaultMutableTreeNode;
 
@@ -17,6 +14,8 @@ import framework.packet.FMPacket;
 import framework.ds.FMComposition;
 import framework.ds.FMCompositionSegment;
 import framework.ds.FMNote;
+import framework.ds.RhythmMap;
+import framework.ds.TimelineCursor;
 import jm.music.data.Part;
 import jm.music.data.Phrase;
 
@@ -57,6 +56,8 @@ public class SimpleSupport implements FMPacket{
 	public Collection<Part> executeSupport(FMComposition composition, DefaultMutableTreeNode node) {
 		
 		loadOptions();
+		//The packet may be executed more than once by a PacketHost
+		pitchAlternator = false;
 		
 		Collection<Part> allparts = new LinkedList<>();
 		
@@ -96,25 +97,29 @@ public class SimpleSupport implements FMPacket{
 		phrase.setDenominator(fmcs.getTimeSignatureDenominator());
 		phrase.setNumerator(fmcs.getTimeSignatureNumerator());
 
-		SortedMap<Integer, Integer> notes;
+		RhythmMap notes;
 		if(RHYTHM_MODE.equals(BEAT_RHYTHM_MODE)) {
-			notes = new TreeMap<Integer, Integer>();
 			int segmentDuration = fmcs.getDuration();
 			int beat = FMNote.WHOLE_NOTE / fmcs.getTimeSignatureDenominator();
+			RhythmMap.Builder beats = new RhythmMap.Builder(Math.max(0, segmentDuration / beat));
 			for(int time = 0; time < segmentDuration; time += beat) {
-				notes.put(time, beat);
+				beats.put(time, beat);
 			}
+			notes = beats.build();
 		} else {
-			notes = fmcs.getRhythm();
+			notes = fmcs.getRhythmMap();
 		}
 		
-		for(Integer noteTime : notes.keySet()) {
-			int[] chord = collectionToIntArray(fmcs.getPitchesAtPosition(noteTime));
+		TimelineCursor cursor = new TimelineCursor(fmcs);
+		for(int i = 0; i < notes.size(); i++) {
+			int noteTime = notes.getOnset(i);
+			cursor.advanceTo(noteTime);
+			int[] chord = cursor.getChord().toIntArray();
 			System.err.print("Chord: ");
 			for(int pit : chord) System.err.print(pit + " ");
 			System.err.println();
 			intArraySubtract(chord, 12);
-			double rhythmVal = FMComposition.getJMRhythmValue(notes.get(noteTime));
+			double rhythmVal = FMComposition.getJMRhythmValue(notes.getDuration(i));
 			switch(PITCH_MODE) {
 			default:
 			case BASIC_PITCH_MODE:
@@ -140,11 +145,11 @@ public class SimpleSupport implements FMPacket{
 		return part;
 	}
 
-	private void addPitchesBasic(FMCompositionSegment fmcs, Phrase phrase, Integer noteTime, int[] chord, double rhythmVal) {
+	private void addPitchesBasic(FMCompositionSegment fmcs, Phrase phrase, int noteTime, int[] chord, double rhythmVal) {
 		phrase.addChord(chord, rhythmVal);
 	}
 
-	private void addPitchesLow(FMCompositionSegment fmcs, Phrase phrase, Integer noteTime, int[] chord, double rhythmVal) {
+	private void addPitchesLow(FMCompositionSegment fmcs, Phrase phrase, int noteTime, int[] chord, double rhythmVal) {
 		Arrays.sort(chord);
 		int[] low = {chord[0]};
 		phrase.addChord(low, rhythmVal);
@@ -153,7 +158,7 @@ public class SimpleSupport implements FMPacket{
 	/**
 	 * @param chord array of 3 pitches (ints)
 	 */
-	private void addPitchesLowAlt(FMCompositionSegment fmcs, Phrase phrase, Integer noteTime, int[] chord, double rhythmVal) {
+	private void addPitchesLowAlt(FMCompositionSegment fmcs, Phrase phrase, int noteTime, int[] chord, double rhythmVal) {
 		Arrays.sort(chord);
 		int[] low = {chord[0], 
 				pitchAlternator ? chord[1] : chord[2]};
@@ -161,13 +166,6 @@ public class SimpleSupport implements FMPacket{
 		pitchAlternator = !pitchAlternator;
 	}
 
-	private int[] collectionToIntArray(Collection<Integer> c) {
-		ArrayList<Integer> a = new ArrayList<>(c);
-		int[] ia = new int[a.size()];
-		for(int i = 0; i < ia.length; i++) ia[i] = a.get(i);
-		return ia;
-	}
-	
 	private void intArraySubtract(int[] a, int i) {
 		for(int j = 0; j < a.length; j++) {
 			a[j] -= i;
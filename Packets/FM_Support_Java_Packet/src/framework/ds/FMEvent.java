@@ -0,0 +1,82 @@
+package framework.ds;
+
+/**
+ * A note of a composition at its position in the piece, as produced by FMComposition.events.
+ * Positions and durations are in FMNote rhythm value units; the segment index is the index of
+ * the note's segment in the composition's pattern.
+ */
+public final class FMEvent {
+
+	// start of the note from the start of the composition
+	private final int position;
+
+	// duration of the note
+	private final int duration;
+
+	// pitch of the note
+	private final int pitch;
+
+	// whether the note is tied to the next note
+	private final boolean tiedToNext;
+
+	// index in the pattern of the segment holding the note
+	private final int segmentIndex;
+
+	/**
+	 * Constructor
+	 * @param position start of the note from the start of the composition
+	 * @param duration duration of the note
+	 * @param pitch pitch of the note
+	 * @param tiedToNext whether the note is tied to the next note
+	 * @param segmentIndex index in the pattern of the segment holding the note
+	 */
+	public FMEvent(int position, int duration, int pitch, boolean tiedToNext, int segmentIndex) {
+		this.position = position;
+		this.duration = duration;
+		this.pitch = pitch;
+		this.tiedToNext = tiedToNext;
+		this.segmentIndex = segmentIndex;
+	}
+
+	/**
+	 * Returns the start of the note from the start of the composition.
+	 * @return position
+	 */
+	public int getPosition() { return position; }
+
+	/**
+	 * Returns the duration of the note.
+	 * @return duration
+	 */
+	public int getDuration() { return duration; }
+
+	/**
+	 * Returns the position at which the note stops sounding.
+	 * @return position plus duration
+	 */
+	public int getEnd() { return position + duration; }
+
+	/**
+	 * Returns the pitch of the note.
+	 * @return pitch
+	 */
+	public int getPitch() { return pitch; }
+
+	/**
+	 * Returns whether the note is tied to the next note.
+	 * @return tied
+	 */
+	public boolean getTiedToNext() { return tiedToNext; }
+
+	/**
+	 * Returns the index in the pattern of the segment holding the note.
+	 * @return segment index
+	 */
+	public int getSegmentIndex() { return segmentIndex; }
+
+	@Override
+	public String toString() {
+		return "FMEvent[position=" + position + ", duration=" + duration + ", pitch=" + pitch
+				+ ", tiedToNext=" + tiedToNext + ", segment=" + segmentIndex + "]";
+	}
+}
@@ -0,0 +1,380 @@
+package framework.ds;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable run of notes held in primitive columns instead of FMNote objects: one int array
+ * each for pitch, duration and start position, and one bit per note for whether it is tied
+ * to the next note. Notes are sorted by start position; notes sharing a start stay in the
+ * order they were added, as in FMMeasure.
+ *
+ * Slices share the columns of the buffer they were taken from, so taking one copies nothing.
+ * FMNote views of the notes are available through getNote and asNotes for code which works
+ * with objects; each call creates a new FMNote.
+ *
+ * See FMNote for documentation on rhythm values.
+ */
+public final class NoteBuffer {
+
+	/** Buffer without any notes */
+	public static final NoteBuffer EMPTY = new NoteBuffer(new int[0], new int[0], new int[0], new long[0], 0, 0);
+
+	// pitch of each note
+	private final int[] pitches;
+
+	// duration of each note
+	private final int[] durations;
+
+	// start position of each note, non-decreasing
+	private final int[] starts;
+
+	// tie flags, one bit per note, indexed like the other columns
+	private final long[] tied;
+
+	// index in the columns of the first note of this buffer
+	private final int offset;
+
+	// number of notes in this buffer
+	private final int size;
+
+	private NoteBuffer(int[] pitches, int[] durations, int[] starts, long[] tied, int offset, int size) {
+		this.pitches = pitches;
+		this.durations = durations;
+		this.starts = starts;
+		this.tied = tied;
+		this.offset = offset;
+		this.size = size;
+	}
+
+	/**
+	 * Receives the notes of a buffer one at a time, without creating an object per note.
+	 */
+	public interface NoteConsumer {
+		/**
+		 * Receives a note
+		 * @param pitch
+		 * @param duration
+		 * @param start position of the note
+		 * @param tiedToNext whether the note is tied to the next note
+		 */
+		void accept(int pitch, int duration, int start, boolean tiedToNext);
+	}
+
+	/**
+	 * Returns the number of notes in the buffer.
+	 * @return size
+	 */
+	public int size() { return size; }
+
+	/**
+	 * Returns whether the buffer holds no notes.
+	 * @return empty
+	 */
+	public boolean isEmpty() { return size == 0; }
+
+	/**
+	 * Returns the pitch of the note at the given index.
+	 * @param index
+	 * @return pitch
+	 */
+	public int getPitch(int index) {
+		return pitches[column(index)];
+	}
+
+	/**
+	 * Returns the duration of the note at the given index.
+	 * @param index
+	 * @return duration
+	 */
+	public int getDuration(int index) {
+		return durations[column(index)];
+	}
+
+	/**
+	 * Returns the start position of the note at the given index.
+	 * @param index
+	 * @return start position
+	 */
+	public int getStart(int index) {
+		return starts[column(index)];
+	}
+
+	/**
+	 * Returns the position at which the note at the given index stops sounding.
+	 * @param index
+	 * @return start position plus duration
+	 */
+	public int getEnd(int index) {
+		int i = column(index);
+		return starts[i] + durations[i];
+	}
+
+	/**
+	 * Returns whether the note at the given index is tied to the next note.
+	 * @param index
+	 * @return tied
+	 */
+	public boolean getTiedToNext(int index) {
+		int i = column(index);
+		return (tied[i >>> 6] & (1L << i)) != 0;
+	}
+
+	/**
+	 * Returns an FMNote view of the note at the given index. Each call creates a new note.
+	 * @param index
+	 * @return note
+	 */
+	public FMNote getNote(int index) {
+		int i = column(index);
+		return new FMNote(pitches[i], durations[i], (tied[i >>> 6] & (1L << i)) != 0);
+	}
+
+	/**
+	 * Returns a read-only list of FMNote views of the notes, created as they are read.
+	 * @return notes
+	 */
+	public List<FMNote> asNotes() {
+		return new AbstractList<FMNote>() {
+			@Override
+			public FMNote get(int index) { return getNote(index); }
+
+			@Override
+			public int size() { return size; }
+		};
+	}
+
+	/**
+	 * Passes every note to the given consumer in order.
+	 * @param consumer
+	 */
+	public void forEach(NoteConsumer consumer) {
+		for(int i = offset; i < offset + size; i++) {
+			consumer.accept(pitches[i], durations[i], starts[i], (tied[i >>> 6] & (1L << i)) != 0);
+		}
+	}
+
+	/**
+	 * Returns the notes from index from, inclusive, to index to, exclusive. The slice shares
+	 * this buffer's columns.
+	 * @param from
+	 * @param to
+	 * @return slice
+	 */
+	public NoteBuffer slice(int from, int to) {
+		if(from < 0 || to > size || from > to) {
+			throw new IndexOutOfBoundsException("Slice " + from + " to " + to + " of a buffer of size " + size);
+		}
+		if(from == 0 && to == size) return this;
+		return new NoteBuffer(pitches, durations, starts, tied, offset + from, to - from);
+	}
+
+	/**
+	 * Returns the notes starting at or after startPosition and before endPosition. The slice
+	 * shares this buffer's columns.
+	 * @param startPosition inclusive
+	 * @param endPosition exclusive
+	 * @return slice
+	 */
+	public NoteBuffer sliceByPosition(int startPosition, int endPosition) {
+		int from = firstStartAtOrAfter(startPosition);
+		int to = Math.max(from, firstStartAtOrAfter(endPosition));
+		return slice(from, to);
+	}
+
+	/**
+	 * Returns the index of the first note starting at or after the given position,
+	 * or the number of notes if none does.
+	 * @param position
+	 * @return index
+	 */
+	public int firstStartAtOrAfter(int position) {
+		int lo = offset;
+		int hi = offset + size;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(starts[mid] < position) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo - offset;
+	}
+
+	/**
+	 * Adds every note of the buffer to the given measure, with its start position moved by
+	 * the given offset.
+	 * @param measure
+	 * @param positionOffset added to every start position
+	 * @return number of notes the measure accepted
+	 */
+	public int addTo(FMMeasure measure, int positionOffset) {
+		int added = 0;
+		for(int i = 0; i < size; i++) {
+			if(measure.addNote(getNote(i), getStart(i) + positionOffset)) {
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Returns the index of the given note in the columns
+	 */
+	private int column(int index) {
+		if(index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + " of a buffer of size " + size);
+		}
+		return offset + index;
+	}
+
+	/**
+	 * Collects notes in any order into a NoteBuffer. Notes added in order of start position
+	 * are stored as they come; otherwise build sorts them, keeping notes which share a start
+	 * in the order they were added.
+	 */
+	public static final class Builder {
+
+		private int[] pitches;
+		private int[] durations;
+		private int[] starts;
+		private long[] tied;
+		private int size;
+
+		// whether every note so far was added at or after the start of the one before
+		private boolean sorted = true;
+
+		/**
+		 * Constructs a builder
+		 * @param expectedSize: number of notes expected, used to size the columns
+		 */
+		public Builder(int expectedSize) {
+			int capacity = Math.max(expectedSize, 4);
+			pitches = new int[capacity];
+			durations = new int[capacity];
+			starts = new int[capacity];
+			tied = new long[words(capacity)];
+		}
+
+		/**
+		 * Constructs a builder with a small initial capacity
+		 */
+		public Builder() {
+			this(16);
+		}
+
+		/**
+		 * Adds a note which is not tied to the next note.
+		 * @param pitch pitch of the note
+		 * @param duration duration of the note
+		 * @param start position of the note
+		 * @return this builder
+		 */
+		public Builder add(int pitch, int duration, int start) {
+			return add(pitch, duration, start, false);
+		}
+
+		/**
+		 * Adds a note.
+		 * @param pitch pitch of the note
+		 * @param duration duration of the note
+		 * @param start position of the note
+		 * @param tiedToNext whether the note is tied to the next note
+		 * @return this builder
+		 */
+		public Builder add(int pitch, int duration, int start, boolean tiedToNext) {
+			if(pitch < 0 && pitch != jm.constants.Pitches.REST) {
+				throw new IllegalArgumentException("Pitch must be >= 0 or Rest (jm.constants.Pitches.REST).");
+			}
+			if(size == pitches.length) {
+				int capacity = size * 2;
+				pitches = Arrays.copyOf(pitches, capacity);
+				durations = Arrays.copyOf(durations, capacity);
+				starts = Arrays.copyOf(starts, capacity);
+				tied = Arrays.copyOf(tied, words(capacity));
+			}
+			if(size > 0 && start < starts[size - 1]) {
+				sorted = false;
+			}
+			pitches[size] = pitch;
+			durations[size] = duration;
+			starts[size] = start;
+			if(tiedToNext) {
+				tied[size >>> 6] |= 1L << size;
+			}
+			size++;
+			return this;
+		}
+
+		/**
+		 * Adds the pitch, duration and tie of an FMNote.
+		 * @param note
+		 * @param start position of the note
+		 * @return this builder
+		 */
+		public Builder add(FMNote note, int start) {
+			return add(note.getPitch(), note.getDuration(), start, note.getTiedToNext());
+		}
+
+		/**
+		 * Adds every note of a buffer, with its start position moved by the given offset.
+		 * @param notes
+		 * @param positionOffset added to every start position
+		 * @return this builder
+		 */
+		public Builder addAll(NoteBuffer notes, int positionOffset) {
+			for(int i = notes.offset; i < notes.offset + notes.size; i++) {
+				add(notes.pitches[i], notes.durations[i], notes.starts[i] + positionOffset,
+						(notes.tied[i >>> 6] & (1L << i)) != 0);
+			}
+			return this;
+		}
+
+		/**
+		 * Returns the number of notes added so far.
+		 * @return size
+		 */
+		public int size() { return size; }
+
+		/**
+		 * Returns the buffer built so far.
+		 * @return note buffer
+		 */
+		public NoteBuffer build() {
+			if(size == 0) return EMPTY;
+			if(sorted) {
+				return new NoteBuffer(Arrays.copyOf(pitches, size), Arrays.copyOf(durations, size),
+						Arrays.copyOf(starts, size), Arrays.copyOf(tied, words(size)), 0, size);
+			}
+			// stable sort of the indexes by start position
+			Integer[] order = new Integer[size];
+			for(int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> Integer.compare(starts[a], starts[b]));
+			int[] sortedPitches = new int[size];
+			int[] sortedDurations = new int[size];
+			int[] sortedStarts = new int[size];
+			long[] sortedTied = new long[words(size)];
+			for(int i = 0; i < size; i++) {
+				int from = order[i];
+				sortedPitches[i] = pitches[from];
+				sortedDurations[i] = durations[from];
+				sortedStarts[i] = starts[from];
+				if((tied[from >>> 6] & (1L << from)) != 0) {
+					sortedTied[i >>> 6] |= 1L << i;
+				}
+			}
+			return new NoteBuffer(sortedPitches, sortedDurations, sortedStarts, sortedTied, 0, size);
+		}
+
+		/**
+		 * Returns the number of longs holding the tie flags of the given number of notes
+		 */
+		private static int words(int notes) {
+			return (notes + 63) >>> 6;
+		}
+	}
+}
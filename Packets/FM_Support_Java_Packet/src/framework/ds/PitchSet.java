@@ -0,0 +1,350 @@
+package framework.ds;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable set of MIDI pitches 0 to 127, held as a 128-bit mask in two longs, as returned by
+ * the getPitchesAtPosition queries. Rests (jm.constants.Pitches.REST) and other pitches outside
+ * the MIDI range are never members. Iteration is in increasing pitch order.
+ *
+ * The set is a Set of Integers for compatibility; code which works with ints can use
+ * containsPitch, nextPitch, forEachPitch and toIntArray instead, none of which box.
+ */
+public final class PitchSet extends AbstractSet<Integer> {
+
+	/** Highest pitch a set can hold */
+	public static final int MAX_PITCH = 127;
+
+	/** Set without any pitches */
+	public static final PitchSet EMPTY = new PitchSet(0L, 0L);
+
+	// pitches 0 to 63, bit n standing for pitch n
+	private final long low;
+
+	// pitches 64 to 127, bit n standing for pitch n + 64; shifts by a pitch use its low six bits
+	private final long high;
+
+	private PitchSet(long low, long high) {
+		this.low = low;
+		this.high = high;
+	}
+
+	/**
+	 * Returns the set with the given bits, sharing EMPTY when none is set.
+	 * @param low pitches 0 to 63
+	 * @param high pitches 64 to 127
+	 * @return set
+	 */
+	static PitchSet fromBits(long low, long high) {
+		return (low | high) == 0 ? EMPTY : new PitchSet(low, high);
+	}
+
+	/**
+	 * Returns whether the set has exactly the given bits
+	 * @param low pitches 0 to 63
+	 * @param high pitches 64 to 127
+	 * @return whether the bits match
+	 */
+	boolean hasBits(long low, long high) {
+		return this.low == low && this.high == high;
+	}
+
+	/**
+	 * Returns the bit standing for the given pitch in the low word, or 0 if it is not there
+	 * @param pitch
+	 * @return bit
+	 */
+	static long lowBit(int pitch) {
+		return pitch >= 0 && pitch < 64 ? 1L << pitch : 0L;
+	}
+
+	/**
+	 * Returns the bit standing for the given pitch in the high word, or 0 if it is not there
+	 * @param pitch
+	 * @return bit
+	 */
+	static long highBit(int pitch) {
+		return pitch >= 64 && pitch <= MAX_PITCH ? 1L << pitch : 0L;
+	}
+
+	/**
+	 * Returns the set of the given pitches. Rests and pitches outside the MIDI range are left out.
+	 * @param pitches
+	 * @return set
+	 */
+	public static PitchSet of(int... pitches) {
+		long low = 0;
+		long high = 0;
+		for(int pitch : pitches) {
+			low |= lowBit(pitch);
+			high |= highBit(pitch);
+		}
+		return fromBits(low, high);
+	}
+
+	/**
+	 * Returns the set of the given pitches. Rests, pitches outside the MIDI range and nulls are
+	 * left out.
+	 * @param pitches
+	 * @return set
+	 */
+	public static PitchSet copyOf(Collection<Integer> pitches) {
+		if(pitches instanceof PitchSet) return (PitchSet)pitches;
+		long low = 0;
+		long high = 0;
+		for(Integer pitch : pitches) {
+			if(pitch == null) continue;
+			low |= lowBit(pitch);
+			high |= highBit(pitch);
+		}
+		return fromBits(low, high);
+	}
+
+	/**
+	 * Returns whether the set holds the given pitch.
+	 * @param pitch
+	 * @return contained
+	 */
+	public boolean containsPitch(int pitch) {
+		return (low & lowBit(pitch)) != 0 || (high & highBit(pitch)) != 0;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Integer && containsPitch((Integer)o);
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		if(c instanceof PitchSet) {
+			return ((PitchSet)c).isSubsetOf(this);
+		}
+		return super.containsAll(c);
+	}
+
+	@Override
+	public int size() {
+		return Long.bitCount(low) + Long.bitCount(high);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return (low | high) == 0;
+	}
+
+	/**
+	 * Returns the lowest pitch in the set at or above the given pitch.
+	 * @param from
+	 * @return pitch, or -1 if there is none
+	 */
+	public int nextPitch(int from) {
+		if(from < 0) from = 0;
+		if(from < 64) {
+			long bits = low & (-1L << from);
+			if(bits != 0) return Long.numberOfTrailingZeros(bits);
+			from = 64;
+		}
+		if(from <= MAX_PITCH) {
+			long bits = high & (-1L << from);
+			if(bits != 0) return 64 + Long.numberOfTrailingZeros(bits);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the lowest pitch in the set.
+	 * @return pitch, or -1 if the set is empty
+	 */
+	public int lowestPitch() {
+		return nextPitch(0);
+	}
+
+	/**
+	 * Returns the highest pitch in the set.
+	 * @return pitch, or -1 if the set is empty
+	 */
+	public int highestPitch() {
+		if(high != 0) return 127 - Long.numberOfLeadingZeros(high);
+		if(low != 0) return 63 - Long.numberOfLeadingZeros(low);
+		return -1;
+	}
+
+	/**
+	 * Passes every pitch to the given consumer in increasing order.
+	 * @param consumer
+	 */
+	public void forEachPitch(IntConsumer consumer) {
+		for(long bits = low; bits != 0; bits &= bits - 1) {
+			consumer.accept(Long.numberOfTrailingZeros(bits));
+		}
+		for(long bits = high; bits != 0; bits &= bits - 1) {
+			consumer.accept(64 + Long.numberOfTrailingZeros(bits));
+		}
+	}
+
+	/**
+	 * Returns the pitches in increasing order.
+	 * @return pitches
+	 */
+	public int[] toIntArray() {
+		int[] res = new int[size()];
+		int i = 0;
+		for(long bits = low; bits != 0; bits &= bits - 1) {
+			res[i++] = Long.numberOfTrailingZeros(bits);
+		}
+		for(long bits = high; bits != 0; bits &= bits - 1) {
+			res[i++] = 64 + Long.numberOfTrailingZeros(bits);
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the pitches in increasing order. Integers for MIDI pitches are cached by
+	 * Integer.valueOf, so iterating boxes without allocating.
+	 */
+	@Override
+	public Iterator<Integer> iterator() {
+		return new Iterator<Integer>() {
+			private int next = lowestPitch();
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public Integer next() {
+				if(next < 0) throw new NoSuchElementException();
+				int res = next;
+				next = res == MAX_PITCH ? -1 : nextPitch(res + 1);
+				return res;
+			}
+		};
+	}
+
+	/**
+	 * Returns the set with the given pitch added.
+	 * @param pitch
+	 * @return set
+	 */
+	public PitchSet with(int pitch) {
+		return fromBits(low | lowBit(pitch), high | highBit(pitch));
+	}
+
+	/**
+	 * Returns the set with the given pitch removed.
+	 * @param pitch
+	 * @return set
+	 */
+	public PitchSet without(int pitch) {
+		return fromBits(low & ~lowBit(pitch), high & ~highBit(pitch));
+	}
+
+	/**
+	 * Returns the pitches in either set.
+	 * @param other
+	 * @return union
+	 */
+	public PitchSet union(PitchSet other) {
+		return fromBits(low | other.low, high | other.high);
+	}
+
+	/**
+	 * Returns the pitches in both sets.
+	 * @param other
+	 * @return intersection
+	 */
+	public PitchSet intersection(PitchSet other) {
+		return fromBits(low & other.low, high & other.high);
+	}
+
+	/**
+	 * Returns whether every pitch of this set is in the other set.
+	 * @param other
+	 * @return subset
+	 */
+	public boolean isSubsetOf(PitchSet other) {
+		return (low & ~other.low) == 0 && (high & ~other.high) == 0;
+	}
+
+	/**
+	 * Returns the set with every pitch moved by the given number of half steps. Pitches moved
+	 * outside the MIDI range are dropped.
+	 * @param semitones positive to transpose up, negative to transpose down
+	 * @return transposed set
+	 */
+	public PitchSet transpose(int semitones) {
+		if(semitones == 0) return this;
+		if(semitones >= 128 || semitones <= -128) return EMPTY;
+		long newLow;
+		long newHigh;
+		if(semitones > 0) {
+			if(semitones >= 64) {
+				newLow = 0;
+				newHigh = low << (semitones - 64);
+			} else {
+				newLow = low << semitones;
+				newHigh = (high << semitones) | (low >>> (64 - semitones));
+			}
+		} else {
+			int down = -semitones;
+			if(down >= 64) {
+				newLow = high >>> (down - 64);
+				newHigh = 0;
+			} else {
+				newLow = (low >>> down) | (high << (64 - down));
+				newHigh = high >>> down;
+			}
+		}
+		return fromBits(newLow, newHigh);
+	}
+
+	/**
+	 * Returns the pitch classes of the set, folded into the octave 0 to 11 (C is 0).
+	 * @return pitch classes
+	 */
+	public PitchSet pitchClasses() {
+		long classes = 0;
+		for(long bits = low; bits != 0; bits &= bits - 1) {
+			classes |= 1L << (Long.numberOfTrailingZeros(bits) % 12);
+		}
+		for(long bits = high; bits != 0; bits &= bits - 1) {
+			classes |= 1L << ((64 + Long.numberOfTrailingZeros(bits)) % 12);
+		}
+		return fromBits(classes, 0L);
+	}
+
+	/**
+	 * Returns the pitch classes as a 12-bit mask, bit n standing for pitch class n (C is 0).
+	 * @return mask
+	 */
+	public int pitchClassMask() {
+		return (int)pitchClasses().low;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(o instanceof PitchSet) {
+			PitchSet other = (PitchSet)o;
+			return low == other.low && high == other.high;
+		}
+		return super.equals(o);
+	}
+
+	@Override
+	public int hashCode() {
+		// sum of the members, as Set requires
+		int res = 0;
+		for(long bits = low; bits != 0; bits &= bits - 1) {
+			res += Long.numberOfTrailingZeros(bits);
+		}
+		for(long bits = high; bits != 0; bits &= bits - 1) {
+			res += 64 + Long.numberOfTrailingZeros(bits);
+		}
+		return res;
+	}
+}
@@ -0,0 +1,20 @@
+package framework.packet;
+
+/**
+ * Optional interface for Packets whose output depends on a random
+ * number generator. Lets the caller supply the seed, so that a run
+ * can be reproduced and no user prompt is needed to obtain one.
+ * 
+ * @version 2.0
+ */
+public interface FMSeededPacket extends FMPacket {
+	
+	/**
+	 * Sets the seed used by subsequent executions of the Packet.
+	 * 
+	 * @param seed the seed to use, or an empty string for a
+	 *             random seed. Null restores the Packet's own
+	 *             way of obtaining a seed.
+	 */
+	public void setSeed(String seed);
+}